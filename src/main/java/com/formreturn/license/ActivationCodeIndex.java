@@ -0,0 +1,596 @@
+package com.formreturn.license;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.nio.file.FileAlreadyExistsException;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.Collection;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+// Set of activation codes kept in a memory-mapped open-addressing hash table, so membership tests don't
+// touch the store and tens of millions of codes cost no heap. A code of the form XXXXX-XXXXX-XXXXX-XXXXX-XXXXXX
+// is packed at 6 bits per character into three longs which are the slot itself; an all-zero first long marks
+// an empty slot. Slots are probed linearly and the table doubles into a new file at 70% load.
+//
+// A Bloom filter sized for the table at its maximum load follows the slots in the same file. It is over
+// twenty times smaller than the table, so it stays in memory when the table doesn't, and most lookups of
+// unknown codes end there. Its false positive rate is fixed when the file is written; opening with another
+// rate rewrites the file.
+//
+// The mapping is shared, so several processes can use the same file: writers take a lock on the file and a
+// process that replaced the file by a larger one marks the old one retired, which makes the others remap.
+// That only holds for processes on one machine. Network filesystems don't keep the mappings of different
+// clients coherent, so a code another machine added may never show up here; LicenseStores leaves the index
+// out of stores marked shared.
+// Codes that don't pack (other lengths or non-ASCII letters) aren't indexed, see isPackable.
+//
+// Unless syncing is off, addAll forces the pages it changed to disk before it returns, so a code the store
+// has synced is never one the index lost in a crash of the machine.
+//
+// The header also holds the generation of the store the index was last checked against, see
+// IndexedLicenseStore; indexes written before it have generation 0.
+public class ActivationCodeIndex {
+
+	private static final int MAGIC = 0x46524349;
+
+	private static final int VERSION = 2;
+
+	private static final int HEADER_SIZE = 64;
+
+	// header fields
+	private static final int MAGIC_OFFSET = 0;
+
+	private static final int VERSION_OFFSET = 4;
+
+	private static final int RETIRED_OFFSET = 8;
+
+	private static final int HASHES_OFFSET = 12;
+
+	private static final int CAPACITY_OFFSET = 16;
+
+	private static final int SIZE_OFFSET = 24;
+
+	private static final int BLOOM_BITS_OFFSET = 32;
+
+	private static final int FPP_OFFSET = 40;
+
+	private static final int GENERATION_OFFSET = 48;
+
+	private static final int SLOT_SIZE = 24;
+
+	// slots per mapped region, keeps each mapping below the 2GB limit of a ByteBuffer
+	private static final int REGION_SLOTS = 1 << 24;
+
+	private static final long INITIAL_CAPACITY = 1 << 16;
+
+	// the filter is a single mapping
+	private static final long MAX_BLOOM_BITS = 8L * Integer.MAX_VALUE & ~63L;
+
+	private static final int CODE_LENGTH = 30;
+
+	private final File file;
+
+	private final double falsePositiveRate;
+
+	private final ReentrantReadWriteLock lock = new ReentrantReadWriteLock();
+
+	private final String syncMode = LicenseStores.getSyncMode();
+
+	// regions written since they were last forced
+	private final BitSet dirty = new BitSet();
+
+	// lookups answered by the filter, and those it let through for codes the table doesn't hold
+	private final AtomicLong bloomNegatives = new AtomicLong();
+
+	private final AtomicLong bloomFalsePositives = new AtomicLong();
+
+	private RandomAccessFile raf;
+
+	private MappedByteBuffer header;
+
+	private MappedByteBuffer[] regions;
+
+	private MappedByteBuffer bloom;
+
+	private long capacity;
+
+	private long bloomBits;
+
+	private int bloomHashes;
+
+	public ActivationCodeIndex(File file, double falsePositiveRate) {
+		if (!(falsePositiveRate > 0 && falsePositiveRate < 1)) {
+			throw new IllegalArgumentException("Bloom filter false positive rate must be between 0 and 1: " + falsePositiveRate);
+		}
+		this.file = file;
+		this.falsePositiveRate = falsePositiveRate;
+	}
+
+	// Maps the index file, returns false if it had to be created and so is empty.
+	public boolean open() throws IOException {
+		this.lock.writeLock().lock();
+		try {
+			if (this.file.exists() && this.file.length() >= HEADER_SIZE) {
+				this.map();
+				if (this.header.getInt(MAGIC_OFFSET) == MAGIC && this.header.getInt(VERSION_OFFSET) == VERSION) {
+					if (this.header.getDouble(FPP_OFFSET) != this.falsePositiveRate) {
+						FileLock fileLock = this.lockFile();
+						try {
+							this.rewrite(this.capacity);
+						} finally {
+							release(fileLock);
+						}
+					}
+					return true;
+				}
+				this.unmap();
+				this.file.delete();
+			}
+			File temp = File.createTempFile(this.file.getName(), ".tmp", this.file.getParentFile());
+			create(temp, INITIAL_CAPACITY, this.falsePositiveRate).close();
+			try {
+				Files.move(temp.toPath(), this.file.toPath());
+			} catch (FileAlreadyExistsException faee) {
+				// another process created it first
+				temp.delete();
+			}
+			this.map();
+			return false;
+		} finally {
+			this.lock.writeLock().unlock();
+		}
+	}
+
+	public boolean contains(String activationCode) throws IOException {
+		if (!isPackable(activationCode)) {
+			return false;
+		}
+		long[] key = pack(activationCode);
+		long hash = hash(key[0], key[1], key[2]);
+		this.lock.readLock().lock();
+		try {
+			this.checkOpen();
+			if (this.header.getInt(RETIRED_OFFSET) != 0) {
+				// replaced by another process, upgrade to the write lock to remap
+				this.lock.readLock().unlock();
+				this.lock.writeLock().lock();
+				try {
+					// closed while we waited
+					this.checkOpen();
+					this.remapIfRetired();
+				} finally {
+					this.lock.readLock().lock();
+					this.lock.writeLock().unlock();
+				}
+			}
+			if (!this.mightContain(hash)) {
+				this.bloomNegatives.incrementAndGet();
+				return false;
+			}
+			if (this.find(hash, key[0], key[1], key[2]) < 0) {
+				this.bloomFalsePositives.incrementAndGet();
+				return false;
+			}
+			return true;
+		} finally {
+			this.lock.readLock().unlock();
+		}
+	}
+
+	public void add(String activationCode) throws IOException {
+		List<String> codes = new ArrayList<String>(1);
+		codes.add(activationCode);
+		this.addAll(codes);
+	}
+
+	// Adds all packable codes under a single file lock.
+	public void addAll(Collection<String> activationCodes) throws IOException {
+		this.lock.writeLock().lock();
+		try {
+			this.checkOpen();
+			FileLock fileLock = this.lockFile();
+			try {
+				for (String activationCode: activationCodes) {
+					if (isPackable(activationCode) && this.insert(pack(activationCode))) {
+						// closing the old file released its lock
+						fileLock = this.lockFile();
+					}
+				}
+				if (!this.syncMode.equals(LicenseStores.SYNC_NONE)) {
+					this.force();
+				}
+			} finally {
+				release(fileLock);
+			}
+		} finally {
+			this.lock.writeLock().unlock();
+		}
+	}
+
+	// Replaces the contents by the codes of a store. Writers in all processes wait until it is done.
+	public void rebuild(LicenseStore store) throws Exception {
+		this.lock.writeLock().lock();
+		try {
+			this.checkOpen();
+			FileLock fileLock = this.lockFile();
+			try {
+				File temp = File.createTempFile(this.file.getName(), ".tmp", this.file.getParentFile());
+				final ActivationCodeIndex rebuilt = new ActivationCodeIndex(temp, this.falsePositiveRate);
+				rebuilt.raf = create(temp, INITIAL_CAPACITY, this.falsePositiveRate);
+				rebuilt.mapChannel();
+				try {
+					store.scan(new LicenseStore.Visitor() {
+						public boolean visit(String activationCode) throws Exception {
+							if (isPackable(activationCode)) {
+								rebuilt.insert(pack(activationCode));
+							}
+							return true;
+						}
+					});
+				} finally {
+					rebuilt.close();
+				}
+				this.replaceWith(temp);
+			} finally {
+				release(fileLock);
+			}
+		} finally {
+			this.lock.writeLock().unlock();
+		}
+	}
+
+	public long size() {
+		this.lock.readLock().lock();
+		try {
+			this.checkOpen();
+			return this.header.getLong(SIZE_OFFSET);
+		} finally {
+			this.lock.readLock().unlock();
+		}
+	}
+
+	public long getGeneration() {
+		this.lock.readLock().lock();
+		try {
+			this.checkOpen();
+			return this.header.getLong(GENERATION_OFFSET);
+		} finally {
+			this.lock.readLock().unlock();
+		}
+	}
+
+	public void setGeneration(long generation) throws IOException {
+		this.lock.writeLock().lock();
+		try {
+			this.checkOpen();
+			FileLock fileLock = this.lockFile();
+			try {
+				this.header.putLong(GENERATION_OFFSET, generation);
+				this.header.force();
+			} finally {
+				release(fileLock);
+			}
+		} finally {
+			this.lock.writeLock().unlock();
+		}
+	}
+
+	public double getFalsePositiveRate() {
+		return this.falsePositiveRate;
+	}
+
+	// (1 - e^(-kn/m))^k for the codes currently held
+	public double getExpectedFalsePositiveRate() {
+		this.lock.readLock().lock();
+		try {
+			this.checkOpen();
+			double fill = 1 - Math.exp(-(double) this.bloomHashes * this.header.getLong(SIZE_OFFSET) / this.bloomBits);
+			return Math.pow(fill, this.bloomHashes);
+		} finally {
+			this.lock.readLock().unlock();
+		}
+	}
+
+	// share of the lookups for unknown codes the filter let through, since this index was opened
+	public double getObservedFalsePositiveRate() {
+		long falsePositives = this.bloomFalsePositives.get();
+		long negatives = this.bloomNegatives.get() + falsePositives;
+		return negatives == 0 ? 0 : (double) falsePositives / negatives;
+	}
+
+	public long getBloomNegatives() {
+		return this.bloomNegatives.get();
+	}
+
+	public long getBloomFalsePositives() {
+		return this.bloomFalsePositives.get();
+	}
+
+	public void close() throws IOException {
+		this.lock.writeLock().lock();
+		try {
+			if (this.raf != null) {
+				this.header.force();
+				for (MappedByteBuffer region: this.regions) {
+					region.force();
+				}
+				this.bloom.force();
+				this.unmap();
+			}
+		} finally {
+			this.lock.writeLock().unlock();
+		}
+	}
+
+	// XXXXX-XXXXX-XXXXX-XXXXX-XXXXXX with ASCII letters and digits, the form generateActivationCode produces.
+	public static boolean isPackable(String activationCode) {
+		if (activationCode == null || activationCode.length() != CODE_LENGTH) {
+			return false;
+		}
+		for (int i = 0; i < CODE_LENGTH; i++) {
+			char c = activationCode.charAt(i);
+			if (i == 5 || i == 11 || i == 17 || i == 23) {
+				if (c != '-') {
+					return false;
+				}
+			} else if (symbol(c) == 0) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	// The 26 characters of the code, dashes skipped, as 10 + 10 + 6 packed symbols.
+	private static long[] pack(String activationCode) {
+		long[] key = new long[3];
+		int position = 0;
+		for (int i = 0; i < CODE_LENGTH; i++) {
+			char c = activationCode.charAt(i);
+			if (c != '-') {
+				int part = position++ / 10;
+				key[part] = (key[part] << 6) | symbol(c);
+			}
+		}
+		return key;
+	}
+
+	// 1-62, 0 for characters that can't be packed
+	private static int symbol(char c) {
+		if (c >= '0' && c <= '9') {
+			return 1 + c - '0';
+		} else if (c >= 'A' && c <= 'Z') {
+			return 11 + c - 'A';
+		} else if (c >= 'a' && c <= 'z') {
+			return 37 + c - 'a';
+		}
+		return 0;
+	}
+
+	private static long hash(long k0, long k1, long k2) {
+		return mix(k0 * 0x9E3779B97F4A7C15L ^ k1 * 0xC2B2AE3D27D4EB4FL ^ k2 * 0x165667B19E3779F9L);
+	}
+
+	private static long mix(long h) {
+		h ^= h >>> 33;
+		h *= 0xFF51AFD7ED558CCDL;
+		h ^= h >>> 33;
+		h *= 0xC4CEB9FE1A85EC53L;
+		h ^= h >>> 33;
+		return h;
+	}
+
+	// Double hashing, probe i is h1 + i * h2. The table uses the low bits of the same hash, so h1 is the
+	// high half and h2 a second mix, odd so the probes don't collapse.
+	private boolean mightContain(long hash) {
+		long h1 = hash >>> 32;
+		long h2 = mix(hash) | 1;
+		for (int i = 0; i < this.bloomHashes; i++) {
+			long bit = ((h1 + i * h2) & Long.MAX_VALUE) % this.bloomBits;
+			if ((this.bloom.get((int) (bit >>> 3)) & (1 << (bit & 7))) == 0) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	private void setBloomBits(long hash) {
+		long h1 = hash >>> 32;
+		long h2 = mix(hash) | 1;
+		for (int i = 0; i < this.bloomHashes; i++) {
+			long bit = ((h1 + i * h2) & Long.MAX_VALUE) % this.bloomBits;
+			int index = (int) (bit >>> 3);
+			this.bloom.put(index, (byte) (this.bloom.get(index) | (1 << (bit & 7))));
+		}
+	}
+
+	// Slot holding the key, or -1 when an empty slot is reached first.
+	private long find(long hash, long k0, long k1, long k2) {
+		long mask = this.capacity - 1;
+		for (long slot = hash & mask; ; slot = (slot + 1) & mask) {
+			MappedByteBuffer region = this.regions[(int) (slot / REGION_SLOTS)];
+			int offset = (int) (slot % REGION_SLOTS) * SLOT_SIZE;
+			long first = region.getLong(offset);
+			if (first == 0) {
+				return -1;
+			}
+			if (first == k0 && region.getLong(offset + 8) == k1 && region.getLong(offset + 16) == k2) {
+				return slot;
+			}
+		}
+	}
+
+	// Caller holds the write lock and the file lock. Returns true if the table grew, which replaces the file.
+	private boolean insert(long[] key) throws IOException {
+		long hash = hash(key[0], key[1], key[2]);
+		long mask = this.capacity - 1;
+		for (long slot = hash & mask; ; slot = (slot + 1) & mask) {
+			MappedByteBuffer region = this.regions[(int) (slot / REGION_SLOTS)];
+			int offset = (int) (slot % REGION_SLOTS) * SLOT_SIZE;
+			long first = region.getLong(offset);
+			if (first == key[0] && region.getLong(offset + 8) == key[1] && region.getLong(offset + 16) == key[2]) {
+				return false;
+			}
+			if (first == 0) {
+				this.setBloomBits(hash);
+				// the first long goes last, readers in other processes treat the slot as empty until then
+				region.putLong(offset + 8, key[1]);
+				region.putLong(offset + 16, key[2]);
+				region.putLong(offset, key[0]);
+				long size = this.header.getLong(SIZE_OFFSET) + 1;
+				this.header.putLong(SIZE_OFFSET, size);
+				this.dirty.set((int) (slot / REGION_SLOTS));
+				if (size * 10 > this.capacity * 7) {
+					this.rewrite(this.capacity * 2);
+					return true;
+				}
+				return false;
+			}
+		}
+	}
+
+	// Writes the changed slots, the filter and the header to disk. Caller holds the write lock.
+	private void force() {
+		for (int i = this.dirty.nextSetBit(0); i >= 0; i = this.dirty.nextSetBit(i + 1)) {
+			this.regions[i].force();
+		}
+		this.dirty.clear();
+		this.bloom.force();
+		this.header.force();
+	}
+
+	// Rehashes into a new file of the given capacity that replaces the current one.
+	private void rewrite(long capacity) throws IOException {
+		File temp = File.createTempFile(this.file.getName(), ".tmp", this.file.getParentFile());
+		ActivationCodeIndex rewritten = new ActivationCodeIndex(temp, this.falsePositiveRate);
+		rewritten.raf = create(temp, capacity, this.falsePositiveRate);
+		rewritten.mapChannel();
+		rewritten.header.putLong(GENERATION_OFFSET, this.header.getLong(GENERATION_OFFSET));
+		for (MappedByteBuffer region: this.regions) {
+			for (int offset = 0; offset < region.capacity(); offset += SLOT_SIZE) {
+				long k0 = region.getLong(offset);
+				if (k0 != 0) {
+					rewritten.insert(new long[] {k0, region.getLong(offset + 8), region.getLong(offset + 16)});
+				}
+			}
+		}
+		rewritten.close();
+		this.replaceWith(temp);
+	}
+
+	// Moves a finished index file over ours and retires the old mapping, so other processes remap.
+	private void replaceWith(File source) throws IOException {
+		if (!source.renameTo(this.file)) {
+			throw new IOException("Unable to replace " + this.file);
+		}
+		this.header.putInt(RETIRED_OFFSET, 1);
+		this.header.force();
+		this.unmap();
+		this.map();
+	}
+
+	// Lookups after close, e.g. requests still running when the shutdown hook closed the store, fail with
+	// this instead of reading the released mapping. Caller holds the read or write lock.
+	private void checkOpen() {
+		if (this.raf == null) {
+			throw new IllegalStateException("Activation code index " + this.file + " is closed");
+		}
+	}
+
+	// Caller holds the write lock. Locks the file, remapping first if another process replaced it.
+	private FileLock lockFile() throws IOException {
+		while (true) {
+			this.remapIfRetired();
+			FileLock fileLock = this.raf.getChannel().lock();
+			if (this.header.getInt(RETIRED_OFFSET) == 0) {
+				return fileLock;
+			}
+			fileLock.release();
+		}
+	}
+
+	private static void release(FileLock fileLock) throws IOException {
+		if (fileLock.isValid()) {
+			fileLock.release();
+		}
+	}
+
+	private void remapIfRetired() throws IOException {
+		if (this.header.getInt(RETIRED_OFFSET) != 0) {
+			this.unmap();
+			this.map();
+		}
+	}
+
+	private void map() throws IOException {
+		this.raf = new RandomAccessFile(this.file, "rw");
+		this.mapChannel();
+	}
+
+	private void mapChannel() throws IOException {
+		FileChannel channel = this.raf.getChannel();
+		// a new file, written out in full when it was closed
+		this.dirty.clear();
+		this.header = channel.map(FileChannel.MapMode.READ_WRITE, 0, HEADER_SIZE);
+		this.capacity = this.header.getLong(CAPACITY_OFFSET);
+		this.bloomBits = this.header.getLong(BLOOM_BITS_OFFSET);
+		this.bloomHashes = this.header.getInt(HASHES_OFFSET);
+		long tableSize = this.capacity * SLOT_SIZE;
+		if (this.capacity <= 0 || (this.capacity & (this.capacity - 1)) != 0 || this.bloomBits <= 0
+				|| this.bloomBits > MAX_BLOOM_BITS || this.bloomHashes <= 0
+				|| channel.size() < HEADER_SIZE + tableSize + this.bloomBits / 8) {
+			// not an index written by us, open() recreates it
+			this.header.putInt(MAGIC_OFFSET, 0);
+			this.regions = new MappedByteBuffer[0];
+			this.bloom = this.header;
+			return;
+		}
+		int count = (int) ((this.capacity + REGION_SLOTS - 1) / REGION_SLOTS);
+		this.regions = new MappedByteBuffer[count];
+		for (int i = 0; i < count; i++) {
+			long slots = Math.min(REGION_SLOTS, this.capacity - (long) i * REGION_SLOTS);
+			this.regions[i] = channel.map(FileChannel.MapMode.READ_WRITE,
+					HEADER_SIZE + (long) i * REGION_SLOTS * SLOT_SIZE, slots * SLOT_SIZE);
+		}
+		this.bloom = channel.map(FileChannel.MapMode.READ_WRITE, HEADER_SIZE + tableSize, this.bloomBits / 8);
+	}
+
+	// the mappings themselves go away once the buffers are collected
+	private void unmap() throws IOException {
+		this.raf.close();
+		this.raf = null;
+		this.header = null;
+		this.regions = null;
+		this.bloom = null;
+	}
+
+	// A sparse file of the given capacity with an initialised header. The filter is sized with the usual
+	// m = -n ln p / (ln 2)^2 and k = m / n ln 2 for n at the load the table grows at.
+	private static RandomAccessFile create(File file, long capacity, double falsePositiveRate) throws IOException {
+		long n = capacity * 7 / 10;
+		long bits = (long) Math.ceil(-n * Math.log(falsePositiveRate) / (Math.log(2) * Math.log(2)));
+		bits = Math.min(MAX_BLOOM_BITS, (bits + 63) & ~63L);
+		int hashes = (int) Math.max(1, Math.round((double) bits / n * Math.log(2)));
+		RandomAccessFile raf = new RandomAccessFile(file, "rw");
+		raf.setLength(0);
+		raf.setLength(HEADER_SIZE + capacity * SLOT_SIZE + bits / 8);
+		raf.seek(0);
+		raf.writeInt(MAGIC);
+		raf.writeInt(VERSION);
+		raf.writeInt(0);
+		raf.writeInt(hashes);
+		raf.writeLong(capacity);
+		raf.writeLong(0);
+		raf.writeLong(bits);
+		raf.writeDouble(falsePositiveRate);
+		return raf;
+	}
+
+}
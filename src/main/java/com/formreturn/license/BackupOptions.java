@@ -0,0 +1,32 @@
+package com.formreturn.license;
+
+import java.util.zip.Deflater;
+
+public class BackupOptions extends Options {
+
+	// file the snapshot is written to, null for stdout
+	public String out = null;
+
+	// workers loading and compressing records, or decompressing and saving them on restore
+	public int workers = PROCESSORS;
+
+	// deflate level of the snapshot, the fastest by default so a backup keeps up with the disk
+	public int level = Deflater.BEST_SPEED;
+
+	protected boolean apply(String name, String value) {
+		if (name.equals("--out") && value != null) {
+			this.out = value;
+		} else if (name.equals("--workers")) {
+			this.workers = parsePositive(name, value);
+		} else if (name.equals("--level")) {
+			this.level = parseCount(name, value);
+			if (this.level > 9) {
+				throw new IllegalArgumentException(name + " must be between 0 and 9");
+			}
+		} else {
+			return false;
+		}
+		return true;
+	}
+
+}
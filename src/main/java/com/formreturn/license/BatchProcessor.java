@@ -0,0 +1,218 @@
+package com.formreturn.license;
+
+import com.google.gson.Gson;
+import com.google.gson.JsonParseException;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.TimeUnit;
+
+// NDJSON request/response protocol: one JSON request per input line, one JSON response per output line.
+//   {"id": 1, "op": "redeemActivationCode", "activationCode": "...", "license": {"firstName": "..."}}
+//   {"id": 1, "ok": true, "result": "<license key>"}
+//   {"id": 2, "ok": false, "error": "Activation code not found"}
+// Requests are executed concurrently, responses are written in input order. Requests naming the same
+// activationCode go to the same worker, so they run in input order: a redeem followed by a
+// validateUpgradability of the code sees the redeemed license. Requests without an activationCode
+// (createActivationCode, createSiteLicenseCode, findLicenses, ...) may depend on any request before them
+// or be depended on by any after them, so they run alone, once every earlier request has finished.
+public class BatchProcessor {
+
+	private static final Future<String> END = new FutureTask<String>(new Callable<String>() {
+		public String call() {
+			return null;
+		}
+	});
+
+	private final Gson gson = new Gson();
+
+	private final LicenseService service;
+
+	private final ServiceOptions options;
+
+	public BatchProcessor(LicenseService service, ServiceOptions options) {
+		this.service = service;
+		this.options = options;
+	}
+
+	public void run(InputStream input, OutputStream output) throws Exception {
+		final BlockingQueue<Future<String>> responses = new ArrayBlockingQueue<Future<String>>(this.options.queueSize);
+		final Writer writer = new BufferedWriter(new OutputStreamWriter(output, "UTF-8"));
+		// one single threaded lane per worker, requests are routed to them by activation code
+		ExecutorService[] lanes = new ExecutorService[this.options.workers];
+		for (int i = 0; i < lanes.length; i++) {
+			lanes[i] = Executors.newSingleThreadExecutor();
+		}
+		List<Future<String>> last = new ArrayList<Future<String>>(lanes.length);
+		for (int i = 0; i < lanes.length; i++) {
+			last.add(null);
+		}
+
+		// WRITER: takes responses in request order, flushing whenever it catches up with the workers
+		final Exception[] writeFailure = new Exception[1];
+		Thread writerThread = new Thread(new Runnable() {
+			public void run() {
+				try {
+					Future<String> response;
+					while ((response = responses.take()) != END) {
+						writer.write(response.get());
+						writer.write('\n');
+						if (responses.isEmpty()) {
+							writer.flush();
+						}
+					}
+					writer.flush();
+				} catch (Exception ex) {
+					writeFailure[0] = ex;
+					// nothing will be written any more, don't let the workers run what is queued
+					List<Future<String>> pending = new ArrayList<Future<String>>();
+					responses.drainTo(pending);
+					for (Future<String> response: pending) {
+						response.cancel(false);
+					}
+				}
+			}
+		}, "batch-writer");
+		writerThread.start();
+
+		// READER: runs on the calling thread
+		BufferedReader reader = new BufferedReader(new InputStreamReader(input, "UTF-8"));
+		try {
+			String line;
+			while ((line = reader.readLine()) != null && writerThread.isAlive()) {
+				if (line.trim().length() == 0) {
+					continue;
+				}
+				final Map request;
+				try {
+					request = this.parse(line);
+				} catch (final JsonParseException jpe) {
+					FutureTask<String> response = new FutureTask<String>(new Callable<String>() {
+						public String call() {
+							return malformed(jpe);
+						}
+					});
+					response.run();
+					if (!hand(responses, response, writerThread)) {
+						break;
+					}
+					continue;
+				}
+				Callable<String> task = new Callable<String>() {
+					public String call() {
+						return process(request);
+					}
+				};
+				Object activationCode = request.get("activationCode");
+				Future<String> response;
+				if (activationCode == null) {
+					await(last);
+					response = lanes[0].submit(task);
+					last.set(0, response);
+					await(last);
+				} else {
+					int lane = (activationCode.toString().trim().toUpperCase().hashCode() & Integer.MAX_VALUE) % lanes.length;
+					response = lanes[lane].submit(task);
+					last.set(lane, response);
+				}
+				if (!hand(responses, response, writerThread)) {
+					break;
+				}
+			}
+		} finally {
+			hand(responses, END, writerThread);
+			for (ExecutorService lane: lanes) {
+				lane.shutdown();
+			}
+			writerThread.join();
+		}
+
+		if (writeFailure[0] != null) {
+			throw writeFailure[0];
+		}
+	}
+
+	// Queues a response for the writer, waiting while the queue is full. Returns false, cancelling the
+	// response, if the writer has died and will never take it.
+	private static boolean hand(BlockingQueue<Future<String>> responses, Future<String> response, Thread writerThread)
+			throws InterruptedException {
+		while (!responses.offer(response, 100, TimeUnit.MILLISECONDS)) {
+			if (!writerThread.isAlive()) {
+				if (response != END) {
+					response.cancel(false);
+				}
+				return false;
+			}
+		}
+		return true;
+	}
+
+	// Waits until the last request of every lane has finished, whether it succeeded, failed or was cancelled.
+	private static void await(List<Future<String>> last) throws InterruptedException {
+		for (Future<String> response: last) {
+			if (response == null) {
+				continue;
+			}
+			try {
+				response.get();
+			} catch (ExecutionException eex) {
+				// reported through the response
+			} catch (CancellationException cex) {
+				// the writer died
+			}
+		}
+	}
+
+	private Map parse(String line) {
+		Map request = this.gson.fromJson(line, Map.class);
+		return request == null ? new LinkedHashMap() : request;
+	}
+
+	private String malformed(JsonParseException jpe) {
+		Map<String, Object> response = new LinkedHashMap<String, Object>();
+		response.put("id", null);
+		response.put("ok", false);
+		response.put("error", "Malformed request: " + jpe.getMessage());
+		return this.gson.toJson(response);
+	}
+
+	private String process(Map request) {
+		Map<String, Object> response = new LinkedHashMap<String, Object>();
+		Object id = request.get("id");
+		if (id instanceof Double && ((Double) id) == Math.rint((Double) id)) {
+			// echo integral ids back the way they were sent rather than as 1.0
+			id = ((Double) id).longValue();
+		}
+		response.put("id", id);
+		try {
+			Object op = request.get("op");
+			Object result = this.service.execute(op == null ? null : op.toString(), request);
+			response.put("ok", true);
+			response.put("result", result);
+		} catch (Exception ex) {
+			response.put("ok", false);
+			response.put("error", ex.getMessage() == null ? ex.toString() : ex.getMessage());
+		}
+		return this.gson.toJson(response);
+	}
+
+}
@@ -0,0 +1,407 @@
+package com.formreturn.license;
+
+import java.util.Collection;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+// Read-through cache of parsed licenses in front of a store, so hot codes aren't read and parsed again on
+// every load. The entries are split over segments by hash, each locked on its own and holding an equal share
+// of the capacity. Eviction within a segment is either plain LRU or W-TinyLFU: new entries go to a small LRU
+// window, and what falls out of the window only enters the main SLRU area if a frequency sketch says it is
+// used more often than the entry it would push out, which keeps one-off lookups from flushing hot codes.
+//
+// Callers always get their own copy, the cached instance is never handed out. A put invalidates the code
+// after writing it, and a load that raced with an invalidation doesn't fill the cache with what it read.
+// Saves of other processes sharing the store don't invalidate anything here, so entries are only served for
+// a bounded time after they were loaded (the ttl, formreturn.license.cache.ttl), which bounds how stale a
+// read can be. Mutations read past the cache anyway, see License.loadLatest.
+public class CachingLicenseStore extends ForwardingLicenseStore {
+
+	public static final String LRU = "lru";
+
+	public static final String TINY_LFU = "tinylfu";
+
+	private static final int SEGMENTS = 16;
+
+	private final String policy;
+
+	private final int capacity;
+
+	private final long ttlNanos;
+
+	private final Segment[] segments = new Segment[SEGMENTS];
+
+	private final AtomicLong hits = new AtomicLong();
+
+	private final AtomicLong misses = new AtomicLong();
+
+	// ttl in milliseconds, 0 to keep entries until they are evicted (a store no other process writes to)
+	public CachingLicenseStore(LicenseStore store, String policy, int capacity, long ttl) throws Exception {
+		super(store);
+		if (ttl < 0) {
+			throw new Exception("Cache ttl must not be negative: " + ttl);
+		}
+		if (!policy.equals(LRU) && !policy.equals(TINY_LFU)) {
+			throw new Exception("Unknown cache policy: " + policy);
+		}
+		this.policy = policy;
+		this.capacity = capacity;
+		this.ttlNanos = ttl == 0 ? Long.MAX_VALUE : ttl * 1000000;
+		int segmentCapacity = Math.max(1, (capacity + SEGMENTS - 1) / SEGMENTS);
+		for (int i = 0; i < SEGMENTS; i++) {
+			this.segments[i] = policy.equals(LRU) ? new LruSegment(segmentCapacity) : new TinyLfuSegment(segmentCapacity);
+		}
+	}
+
+	public License get(String activationCode) throws Exception {
+		Segment segment = this.segment(activationCode);
+		long generation;
+		synchronized (segment) {
+			Cached cached = segment.get(activationCode);
+			if (cached != null && !this.isExpired(cached)) {
+				this.hits.incrementAndGet();
+				return copy(cached.license);
+			}
+			if (cached != null) {
+				segment.remove(activationCode);
+			}
+			generation = segment.generation;
+		}
+		this.misses.incrementAndGet();
+		// the ttl counts from before the read, the record may have been replaced right after it
+		long expires = this.ttlNanos == Long.MAX_VALUE ? Long.MAX_VALUE : System.nanoTime() + this.ttlNanos;
+		License license = this.store.get(activationCode);
+		if (license != null) {
+			Cached cached = new Cached(copy(license), expires);
+			synchronized (segment) {
+				if (segment.generation == generation) {
+					segment.put(activationCode, cached);
+				}
+			}
+		}
+		return license;
+	}
+
+	public boolean exists(String activationCode) throws Exception {
+		Segment segment = this.segment(activationCode);
+		synchronized (segment) {
+			Cached cached = segment.get(activationCode);
+			if (cached != null && !this.isExpired(cached)) {
+				return true;
+			}
+		}
+		return this.store.exists(activationCode);
+	}
+
+	public void put(License license) throws Exception {
+		try {
+			this.store.put(license);
+		} finally {
+			this.invalidate(license.activationCode);
+		}
+	}
+
+	public void putAll(Collection<License> licenses) throws Exception {
+		try {
+			this.store.putAll(licenses);
+		} finally {
+			for (License license: licenses) {
+				this.invalidate(license.activationCode);
+			}
+		}
+	}
+
+	public String getPolicy() {
+		return this.policy;
+	}
+
+	public int getCapacity() {
+		return this.capacity;
+	}
+
+	public int size() {
+		int size = 0;
+		for (Segment segment: this.segments) {
+			synchronized (segment) {
+				size += segment.size();
+			}
+		}
+		return size;
+	}
+
+	public long getHits() {
+		return this.hits.get();
+	}
+
+	public long getMisses() {
+		return this.misses.get();
+	}
+
+	public long getEvictions() {
+		long evictions = 0;
+		for (Segment segment: this.segments) {
+			synchronized (segment) {
+				evictions += segment.evictions;
+			}
+		}
+		return evictions;
+	}
+
+	public double getHitRate() {
+		long hits = this.hits.get();
+		long lookups = hits + this.misses.get();
+		return lookups == 0 ? 0 : (double) hits / lookups;
+	}
+
+	// Drops the cached copy of the code, for when another process may have saved it.
+	public void invalidate(String activationCode) {
+		Segment segment = this.segment(activationCode);
+		synchronized (segment) {
+			segment.remove(activationCode);
+			segment.generation++;
+		}
+	}
+
+	public long getTtl() {
+		return this.ttlNanos == Long.MAX_VALUE ? 0 : this.ttlNanos / 1000000;
+	}
+
+	private boolean isExpired(Cached cached) {
+		return cached.expires != Long.MAX_VALUE && System.nanoTime() - cached.expires > 0;
+	}
+
+	private Segment segment(String activationCode) {
+		int h = activationCode.hashCode();
+		return this.segments[(h ^ (h >>> 16)) & (SEGMENTS - 1)];
+	}
+
+	private static License copy(License license) {
+		License copy = new License();
+		copy.copyFrom(license);
+		return copy;
+	}
+
+	// A share of the cache, all access synchronized on the segment.
+	private abstract static class Segment {
+
+		// bumped by every invalidation, a load only fills the cache if it didn't change meanwhile
+		long generation;
+
+		long evictions;
+
+		abstract Cached get(String activationCode);
+
+		abstract void put(String activationCode, Cached cached);
+
+		abstract void remove(String activationCode);
+
+		abstract int size();
+
+	}
+
+	private static class LruSegment extends Segment {
+
+		private final LinkedHashMap<String, Cached> entries;
+
+		LruSegment(final int capacity) {
+			this.entries = new LinkedHashMap<String, Cached>(16, 0.75f, true) {
+				protected boolean removeEldestEntry(Map.Entry<String, Cached> eldest) {
+					if (size() > capacity) {
+						evictions++;
+						return true;
+					}
+					return false;
+				}
+			};
+		}
+
+		Cached get(String activationCode) {
+			return this.entries.get(activationCode);
+		}
+
+		void put(String activationCode, Cached cached) {
+			this.entries.put(activationCode, cached);
+		}
+
+		void remove(String activationCode) {
+			this.entries.remove(activationCode);
+		}
+
+		int size() {
+			return this.entries.size();
+		}
+
+	}
+
+	// Window of 1% in front of a segmented LRU with 80% protected and 20% probation. Candidates leaving the
+	// window compete with the eldest probation entry on their sketched frequency.
+	private static class TinyLfuSegment extends Segment {
+
+		private final LinkedHashMap<String, Cached> window = new LinkedHashMap<String, Cached>(16, 0.75f, true);
+
+		private final LinkedHashMap<String, Cached> probation = new LinkedHashMap<String, Cached>(16, 0.75f, true);
+
+		private final LinkedHashMap<String, Cached> protectedArea = new LinkedHashMap<String, Cached>(16, 0.75f, true);
+
+		private final FrequencySketch sketch;
+
+		private final int windowCapacity;
+
+		private final int mainCapacity;
+
+		private final int protectedCapacity;
+
+		TinyLfuSegment(int capacity) {
+			this.windowCapacity = Math.max(1, capacity / 100);
+			this.mainCapacity = Math.max(1, capacity - this.windowCapacity);
+			this.protectedCapacity = this.mainCapacity * 8 / 10;
+			this.sketch = new FrequencySketch(capacity);
+		}
+
+		Cached get(String activationCode) {
+			this.sketch.increment(activationCode);
+			Cached cached = this.window.get(activationCode);
+			if (cached != null) {
+				return cached;
+			}
+			cached = this.protectedArea.get(activationCode);
+			if (cached != null) {
+				return cached;
+			}
+			cached = this.probation.remove(activationCode);
+			if (cached != null) {
+				// second hit, promote
+				this.protectedArea.put(activationCode, cached);
+				if (this.protectedArea.size() > this.protectedCapacity) {
+					Map.Entry<String, Cached> demoted = eldest(this.protectedArea);
+					this.protectedArea.remove(demoted.getKey());
+					this.probation.put(demoted.getKey(), demoted.getValue());
+				}
+			}
+			return cached;
+		}
+
+		void put(String activationCode, Cached cached) {
+			if (this.replace(this.window, activationCode, cached) || this.replace(this.protectedArea, activationCode, cached)
+					|| this.replace(this.probation, activationCode, cached)) {
+				return;
+			}
+			this.window.put(activationCode, cached);
+			if (this.window.size() <= this.windowCapacity) {
+				return;
+			}
+			Map.Entry<String, Cached> candidate = eldest(this.window);
+			this.window.remove(candidate.getKey());
+			if (this.probation.size() + this.protectedArea.size() < this.mainCapacity) {
+				this.probation.put(candidate.getKey(), candidate.getValue());
+				return;
+			}
+			this.evictions++;
+			Map.Entry<String, Cached> victim = eldest(this.probation.isEmpty() ? this.protectedArea : this.probation);
+			if (this.sketch.frequency(candidate.getKey()) > this.sketch.frequency(victim.getKey())) {
+				this.probation.remove(victim.getKey());
+				this.protectedArea.remove(victim.getKey());
+				this.probation.put(candidate.getKey(), candidate.getValue());
+			}
+		}
+
+		void remove(String activationCode) {
+			if (this.window.remove(activationCode) == null && this.probation.remove(activationCode) == null) {
+				this.protectedArea.remove(activationCode);
+			}
+		}
+
+		int size() {
+			return this.window.size() + this.probation.size() + this.protectedArea.size();
+		}
+
+		// replaces a value in place, without counting as an access
+		private boolean replace(LinkedHashMap<String, Cached> area, String activationCode, Cached cached) {
+			if (!area.containsKey(activationCode)) {
+				return false;
+			}
+			area.put(activationCode, cached);
+			return true;
+		}
+
+		private static Map.Entry<String, Cached> eldest(LinkedHashMap<String, Cached> area) {
+			Iterator<Map.Entry<String, Cached>> entries = area.entrySet().iterator();
+			return entries.next();
+		}
+
+	}
+
+	// A cached license and when it stops being served.
+	private static class Cached {
+
+		final License license;
+
+		final long expires;
+
+		Cached(License license, long expires) {
+			this.license = license;
+			this.expires = expires;
+		}
+
+	}
+
+	// Count-min sketch of 4 rows of saturating 4-bit counters, halved every 10 * capacity increments so
+	// frequencies follow recent use.
+	private static class FrequencySketch {
+
+		private static final int[] SEEDS = new int[] {0x97CB3127, 0x84222325, 0xCBF29CE4, 0x9E3779B9};
+
+		private final byte[][] rows = new byte[SEEDS.length][];
+
+		private final int mask;
+
+		private final int sampleSize;
+
+		private int additions;
+
+		FrequencySketch(int capacity) {
+			int width = Integer.highestOneBit(Math.max(16, capacity * 2) - 1) << 1;
+			for (int i = 0; i < this.rows.length; i++) {
+				this.rows[i] = new byte[width];
+			}
+			this.mask = width - 1;
+			this.sampleSize = Math.max(160, capacity * 10);
+		}
+
+		void increment(String key) {
+			int hash = key.hashCode();
+			for (int i = 0; i < this.rows.length; i++) {
+				int index = this.index(hash, i);
+				if (this.rows[i][index] < 15) {
+					this.rows[i][index]++;
+				}
+			}
+			if (++this.additions == this.sampleSize) {
+				for (byte[] row: this.rows) {
+					for (int j = 0; j < row.length; j++) {
+						row[j] >>= 1;
+					}
+				}
+				this.additions /= 2;
+			}
+		}
+
+		int frequency(String key) {
+			int hash = key.hashCode();
+			int frequency = 15;
+			for (int i = 0; i < this.rows.length; i++) {
+				frequency = Math.min(frequency, this.rows[i][this.index(hash, i)]);
+			}
+			return frequency;
+		}
+
+		private int index(int hash, int row) {
+			int h = hash * SEEDS[row];
+			return (h ^ (h >>> 16)) & this.mask;
+		}
+
+	}
+
+}
@@ -0,0 +1,52 @@
+package com.formreturn.license;
+
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.util.ArrayList;
+import java.util.List;
+
+// Mints activation codes in bulk. Codes are persisted a batch at a time and only written to the
+// output once their batch is stored, so every printed code is redeemable. Memory is bounded by the batch size.
+public class CodeGenerator {
+
+	private final CodeOptions options;
+
+	public CodeGenerator(CodeOptions options) {
+		this.options = options;
+	}
+
+	public long run(OutputStream output) throws Exception {
+		Writer writer = new BufferedWriter(new OutputStreamWriter(output, "UTF-8"), 65536);
+		List<License> batch = new ArrayList<License>(this.options.batchSize);
+		long created = 0;
+		while (created < this.options.count) {
+			License license = new License();
+			license.licenseType = this.options.licenseType;
+			license.activationCode = Misc.generateActivationCode();
+			batch.add(license);
+			created++;
+			if (batch.size() == this.options.batchSize) {
+				this.flush(batch, writer);
+			}
+		}
+		this.flush(batch, writer);
+		return created;
+	}
+
+	private void flush(List<License> batch, Writer writer) throws Exception {
+		if (batch.isEmpty()) {
+			return;
+		}
+		License.saveAll(batch);
+		for (License license: batch) {
+			writer.write(license.activationCode);
+			writer.write('\n');
+		}
+		writer.flush();
+		batch.clear();
+	}
+
+}
@@ -0,0 +1,41 @@
+package com.formreturn.license;
+
+public class CodeOptions extends Options {
+
+	// number of activation codes to create
+	public long count = 1;
+
+	public String licenseType = "User";
+
+	// file the codes are written to, null for stdout
+	public String out = null;
+
+	// codes persisted per batch
+	public int batchSize = 1000;
+
+	protected boolean apply(String name, String value) {
+		if (name.equals("--count")) {
+			if (value == null) {
+				throw new IllegalArgumentException(name + " requires a value");
+			}
+			try {
+				this.count = Long.parseLong(value.trim());
+			} catch (NumberFormatException nfe) {
+				throw new IllegalArgumentException(name + " is not a number: " + value);
+			}
+			if (this.count <= 0) {
+				throw new IllegalArgumentException(name + " must be greater than zero");
+			}
+		} else if (name.equals("--type") && value != null) {
+			this.licenseType = value;
+		} else if (name.equals("--out") && value != null) {
+			this.out = value;
+		} else if (name.equals("--batch-size")) {
+			this.batchSize = parsePositive(name, value);
+		} else {
+			return false;
+		}
+		return true;
+	}
+
+}
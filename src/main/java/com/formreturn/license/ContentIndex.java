@@ -0,0 +1,143 @@
+package com.formreturn.license;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.math.BigInteger;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.TreeMap;
+
+// Content hash of every stored license, used by incremental imports to skip records that haven't changed
+// without reading the stored file. Kept as an append-only log of "<activationCode> <hash>" lines where
+// later lines win, compacted when the log holds more stale lines than live ones. The hashes only say what
+// was last imported, not what is stored, so the import confirms a code still exists before skipping it, and
+// a restore, which fills the store with other contents, deletes the index.
+public class ContentIndex {
+
+	private final File file;
+
+	private final HashMap<String, Long> hashes = new HashMap<String, Long>();
+
+	private long lines;
+
+	private Writer writer;
+
+	public ContentIndex(File file) {
+		this.file = file;
+	}
+
+	public static ContentIndex getDefault() {
+		return new ContentIndex(new File(LicenseStores.getIndexDirectory(), "content.idx"));
+	}
+
+	public synchronized void open() throws IOException {
+		this.hashes.clear();
+		this.lines = 0;
+		if (this.file.exists()) {
+			BufferedReader reader = new BufferedReader(new InputStreamReader(new FileInputStream(this.file), "UTF-8"));
+			try {
+				String line;
+				while ((line = reader.readLine()) != null) {
+					int index = line.indexOf(' ');
+					if (index <= 0) {
+						continue;
+					}
+					try {
+						this.hashes.put(line.substring(0, index), new BigInteger(line.substring(index + 1), 16).longValue());
+						this.lines++;
+					} catch (NumberFormatException nfe) {
+						// torn final line after a crash, the record is simply rewritten next time
+					}
+				}
+			} finally {
+				reader.close();
+			}
+		}
+		if (this.lines > 2 * this.hashes.size() + 1000) {
+			this.compact();
+		}
+		this.writer = new BufferedWriter(new OutputStreamWriter(new FileOutputStream(this.file, true), "UTF-8"), 65536);
+	}
+
+	public synchronized Long get(String activationCode) {
+		return this.hashes.get(activationCode);
+	}
+
+	public synchronized void put(String activationCode, long hash) throws IOException {
+		Long previous = this.hashes.put(activationCode, hash);
+		if (previous == null || previous != hash) {
+			this.writer.write(activationCode + " " + Long.toHexString(hash) + "\n");
+			this.lines++;
+		}
+	}
+
+	// Forgets every hash, the next incremental import writes all records.
+	public synchronized void delete() throws IOException {
+		this.close();
+		this.hashes.clear();
+		this.lines = 0;
+		if (this.file.exists() && !this.file.delete()) {
+			throw new IOException("Unable to delete " + this.file);
+		}
+	}
+
+	public synchronized void close() throws IOException {
+		if (this.writer != null) {
+			this.writer.close();
+			this.writer = null;
+		}
+	}
+
+	// 64 bit digest of the stored form of a license, independent of map ordering.
+	public static long hash(License license) {
+		StringBuilder content = new StringBuilder();
+		for (Map.Entry<String, String> entry: new TreeMap<String, String>(license.toMap()).entrySet()) {
+			// the version counts saves, not content
+			if (entry.getKey().equals("version")) {
+				continue;
+			}
+			content.append(entry.getKey()).append('=').append(entry.getValue()).append('\n');
+		}
+		try {
+			byte[] digest = MessageDigest.getInstance("MD5").digest(content.toString().getBytes("UTF-8"));
+			long hash = 0;
+			for (int i = 0; i < 8; i++) {
+				hash = (hash << 8) | (digest[i] & 0xFF);
+			}
+			return hash;
+		} catch (NoSuchAlgorithmException e) {
+			throw new RuntimeException(e);
+		} catch (IOException e) {
+			throw new RuntimeException(e);
+		}
+	}
+
+	private void compact() throws IOException {
+		File compacted = new File(this.file.getPath() + ".tmp");
+		Writer out = new BufferedWriter(new OutputStreamWriter(new FileOutputStream(compacted), "UTF-8"), 65536);
+		try {
+			for (Map.Entry<String, Long> entry: this.hashes.entrySet()) {
+				out.write(entry.getKey() + " " + Long.toHexString(entry.getValue()) + "\n");
+			}
+		} finally {
+			out.close();
+		}
+		if (!compacted.renameTo(this.file)) {
+			this.file.delete();
+			if (!compacted.renameTo(this.file)) {
+				throw new IOException("Unable to replace " + this.file);
+			}
+		}
+		this.lines = this.hashes.size();
+	}
+
+}
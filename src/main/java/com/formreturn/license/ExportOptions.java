@@ -0,0 +1,86 @@
+package com.formreturn.license;
+
+import java.text.ParseException;
+import java.text.SimpleDateFormat;
+import java.util.Date;
+
+public class ExportOptions extends Options {
+
+	// ndjson or csv
+	public String format = "ndjson";
+
+	// file the export is written to, null for stdout
+	public String out = null;
+
+	// workers reading and parsing stored licenses
+	public int workers = PROCESSORS;
+
+	// capacity of the bounded queues between the walker, the workers and the writer
+	public int queueSize = 1024;
+
+	// FILTERS (null matches everything)
+	public String licenseType = null;
+
+	public Integer cert = null;
+
+	// inclusive range of the issued date
+	public Date from = null;
+
+	public Date to = null;
+
+	protected boolean apply(String name, String value) {
+		if (name.equals("--format") && value != null) {
+			if (!value.equals("ndjson") && !value.equals("csv")) {
+				throw new IllegalArgumentException(name + " must be ndjson or csv");
+			}
+			this.format = value;
+		} else if (name.equals("--out") && value != null) {
+			this.out = value;
+		} else if (name.equals("--workers")) {
+			this.workers = parsePositive(name, value);
+		} else if (name.equals("--queue-size")) {
+			this.queueSize = parsePositive(name, value);
+		} else if (name.equals("--license-type") && value != null) {
+			this.licenseType = value;
+		} else if (name.equals("--cert")) {
+			this.cert = parseCount(name, value);
+		} else if (name.equals("--from")) {
+			this.from = parseDate(name, value);
+		} else if (name.equals("--to")) {
+			this.to = parseDate(name, value);
+		} else {
+			return false;
+		}
+		return true;
+	}
+
+	public boolean matches(License license) {
+		if (this.licenseType != null && !this.licenseType.equals(license.licenseType)) {
+			return false;
+		}
+		if (this.cert != null && this.cert != license.cert) {
+			return false;
+		}
+		if (this.from != null && (license.issued == null || license.issued.before(this.from))) {
+			return false;
+		}
+		if (this.to != null && (license.issued == null || license.issued.after(this.to))) {
+			return false;
+		}
+		return true;
+	}
+
+	private static Date parseDate(String name, String value) {
+		if (value == null) {
+			throw new IllegalArgumentException(name + " requires a value");
+		}
+		try {
+			SimpleDateFormat format = new SimpleDateFormat("yyyy-MM-dd");
+			format.setLenient(false);
+			return format.parse(value);
+		} catch (ParseException pex) {
+			throw new IllegalArgumentException(name + " is not a yyyy-MM-dd date: " + value);
+		}
+	}
+
+}
@@ -0,0 +1,43 @@
+package com.formreturn.license;
+
+import java.util.Collection;
+
+// Base of the stores that add an index or cache in front of another store. Everything is passed through
+// unless overridden.
+public abstract class ForwardingLicenseStore implements LicenseStore {
+
+	protected final LicenseStore store;
+
+	protected ForwardingLicenseStore(LicenseStore store) {
+		this.store = store;
+	}
+
+	public License get(String activationCode) throws Exception {
+		return this.store.get(activationCode);
+	}
+
+	public boolean exists(String activationCode) throws Exception {
+		return this.store.exists(activationCode);
+	}
+
+	public void put(License license) throws Exception {
+		this.store.put(license);
+	}
+
+	public void putAll(Collection<License> licenses) throws Exception {
+		this.store.putAll(licenses);
+	}
+
+	public void scan(Visitor visitor) throws Exception {
+		this.store.scan(visitor);
+	}
+
+	public void close() throws Exception {
+		this.store.close();
+	}
+
+	public LicenseStore getStore() {
+		return this.store;
+	}
+
+}
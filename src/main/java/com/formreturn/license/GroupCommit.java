@@ -0,0 +1,91 @@
+package com.formreturn.license;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+
+// Lets concurrent writers share one sync. A writer adds what it wrote to the open batch and waits; when no
+// sync is running the first waiter takes the batch, syncs it for everybody in it and wakes them. Writers
+// arriving during a sync collect in the next batch, so a busy store syncs once per disk round trip rather
+// than once per write.
+public class GroupCommit<T> {
+
+	public interface Syncer<T> {
+
+		void sync(List<T> batch) throws IOException;
+
+	}
+
+	private final Syncer<T> syncer;
+
+	private Batch<T> open = new Batch<T>();
+
+	private boolean syncing;
+
+	public GroupCommit(Syncer<T> syncer) {
+		this.syncer = syncer;
+	}
+
+	public void commit(T item) throws IOException {
+		List<T> items = new ArrayList<T>(1);
+		items.add(item);
+		this.commitAll(items);
+	}
+
+	// Returns once a sync covering the items completed, throws if that sync failed.
+	public void commitAll(Collection<T> items) throws IOException {
+		Batch<T> batch;
+		boolean leader = false;
+		synchronized (this) {
+			batch = this.open;
+			batch.items.addAll(items);
+			while (!batch.done && this.syncing) {
+				try {
+					this.wait();
+				} catch (InterruptedException iex) {
+					Thread.currentThread().interrupt();
+					throw new InterruptedIOException("Interrupted waiting for a sync");
+				}
+			}
+			if (!batch.done) {
+				// our batch is still open, lead it
+				leader = true;
+				this.syncing = true;
+				this.open = new Batch<T>();
+			}
+		}
+		if (leader) {
+			IOException failure = null;
+			try {
+				this.syncer.sync(batch.items);
+			} catch (IOException ioe) {
+				failure = ioe;
+			} catch (RuntimeException rex) {
+				failure = new IOException(rex.toString(), rex);
+			} finally {
+				synchronized (this) {
+					batch.failure = failure;
+					batch.done = true;
+					this.syncing = false;
+					this.notifyAll();
+				}
+			}
+		}
+		if (batch.failure != null) {
+			throw new IOException("Sync failed: " + batch.failure.getMessage(), batch.failure);
+		}
+	}
+
+	private static class Batch<T> {
+
+		private final List<T> items = new ArrayList<T>();
+
+		private boolean done;
+
+		private IOException failure;
+
+	}
+
+}
@@ -0,0 +1,425 @@
+package com.formreturn.license;
+
+import org.apache.commons.lang3.time.DateFormatUtils;
+
+import java.io.File;
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.sql.Types;
+import java.time.LocalDate;
+import java.time.ZoneId;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+
+// Licenses in an embedded H2 database, <directory>/licenses.mv.db, one row per activation code with a column
+// per field so they can be queried with SQL. Email, purchaseId, issued and expire are indexed besides the
+// activation code key. Connections come from a pool of a fixed size, opened as they are needed and each with
+// its statements prepared once. Reads run in auto-commit, a batch is saved with one batched MERGE in a single
+// transaction. Scans page through the codes in key order so they don't hold a connection while visiting.
+// H2 locks the database file, only one process can have the store open.
+public class H2LicenseStore implements SnapshotLicenseStore {
+
+	private static final String[] COLUMNS = new String[] {
+			"activation_code", "license_type", "cert", "quantity", "replaced_by", "upgraded_from", "site_license",
+			"first_name", "last_name", "canonical_name", "organization", "street", "city", "state", "country",
+			"purchase_id", "email", "issued", "expire", "license_key", "version"
+	};
+
+	private static final String[] SCHEMA = new String[] {
+			"CREATE TABLE IF NOT EXISTS licenses ("
+					+ "activation_code VARCHAR(64) PRIMARY KEY, license_type VARCHAR, cert INT NOT NULL, quantity INT NOT NULL, "
+					+ "replaced_by VARCHAR(64), upgraded_from VARCHAR(64), site_license VARCHAR, "
+					+ "first_name VARCHAR, last_name VARCHAR, canonical_name VARCHAR, organization VARCHAR, street VARCHAR, "
+					+ "city VARCHAR, state VARCHAR, country VARCHAR, purchase_id VARCHAR, email VARCHAR, "
+					+ "issued DATE, expire DATE, license_key VARCHAR, version BIGINT DEFAULT 0 NOT NULL)",
+			// databases created before licenses had a version
+			"ALTER TABLE licenses ADD COLUMN IF NOT EXISTS version BIGINT DEFAULT 0 NOT NULL",
+			"CREATE INDEX IF NOT EXISTS licenses_email ON licenses(email)",
+			"CREATE INDEX IF NOT EXISTS licenses_purchase_id ON licenses(purchase_id)",
+			"CREATE INDEX IF NOT EXISTS licenses_issued ON licenses(issued)",
+			"CREATE INDEX IF NOT EXISTS licenses_expire ON licenses(expire)"
+	};
+
+	// codes per page of a scan
+	private static final int PAGE_SIZE = 1000;
+
+	private final String url;
+
+	private final int poolSize;
+
+	private final BlockingQueue<Session> idle;
+
+	private final List<Session> sessions = new ArrayList<Session>();
+
+	public H2LicenseStore(File directory, int poolSize) throws Exception {
+		if (poolSize <= 0) {
+			throw new Exception("The connection pool needs at least one connection");
+		}
+		directory.mkdirs();
+		// the store is closed by the shutdown hook of LicenseStores, not by H2's own
+		this.url = "jdbc:h2:" + new File(directory, "licenses").getAbsolutePath() + ";DB_CLOSE_ON_EXIT=FALSE";
+		this.poolSize = poolSize;
+		this.idle = new ArrayBlockingQueue<Session>(poolSize);
+		Connection connection = this.connect();
+		try {
+			Statement statement = connection.createStatement();
+			try {
+				for (String sql: SCHEMA) {
+					statement.execute(sql);
+				}
+			} finally {
+				statement.close();
+			}
+		} finally {
+			connection.close();
+		}
+	}
+
+	public License get(String activationCode) throws Exception {
+		Session session = this.acquire();
+		try {
+			return session.get(activationCode);
+		} finally {
+			this.release(session);
+		}
+	}
+
+	public boolean exists(String activationCode) throws Exception {
+		Session session = this.acquire();
+		try {
+			session.exists.setString(1, activationCode);
+			ResultSet result = session.exists.executeQuery();
+			try {
+				return result.next();
+			} finally {
+				result.close();
+			}
+		} finally {
+			this.release(session);
+		}
+	}
+
+	public void put(License license) throws Exception {
+		this.putAll(Collections.singletonList(license));
+	}
+
+	public void putAll(Collection<License> licenses) throws Exception {
+		Session session = this.acquire();
+		try {
+			session.connection.setAutoCommit(false);
+			try {
+				for (License license: licenses) {
+					bind(session.merge, license);
+					session.merge.addBatch();
+				}
+				session.merge.executeBatch();
+				session.connection.commit();
+			} catch (SQLException ex) {
+				session.merge.clearBatch();
+				session.connection.rollback();
+				throw ex;
+			} finally {
+				session.connection.setAutoCommit(true);
+			}
+		} finally {
+			this.release(session);
+		}
+	}
+
+	public void scan(Visitor visitor) throws Exception {
+		String after = "";
+		while (after != null) {
+			List<String> page;
+			Session session = this.acquire();
+			try {
+				page = session.page(after);
+			} finally {
+				this.release(session);
+			}
+			after = visit(page, visitor);
+		}
+	}
+
+	// The view is that of a repeatable read transaction on a connection of its own, fixed by its first query.
+	// Its connection serves one query at a time, so getAll reads a batch of codes with a single range query and
+	// the workers of a backup only take turns for that rather than for every record.
+	public LicenseSnapshot openSnapshot() throws Exception {
+		Connection connection = this.connect();
+		connection.setAutoCommit(false);
+		final Session session;
+		final String watermark;
+		try {
+			connection.setTransactionIsolation(Connection.TRANSACTION_REPEATABLE_READ);
+			session = new Session(connection);
+			Statement statement = connection.createStatement();
+			try {
+				ResultSet result = statement.executeQuery("SELECT COUNT(*) FROM licenses");
+				result.next();
+				watermark = result.getLong(1) + " licenses at "
+						+ DateFormatUtils.ISO_8601_EXTENDED_DATETIME_TIME_ZONE_FORMAT.format(System.currentTimeMillis());
+				result.close();
+			} finally {
+				statement.close();
+			}
+		} catch (SQLException ex) {
+			connection.close();
+			throw ex;
+		}
+		return new LicenseSnapshot() {
+			public String getWatermark() {
+				return watermark;
+			}
+
+			public void scan(Visitor visitor) throws Exception {
+				String after = "";
+				while (after != null) {
+					List<String> page;
+					synchronized (session) {
+						page = session.page(after);
+					}
+					after = visit(page, visitor);
+				}
+			}
+
+			public License get(String activationCode) throws Exception {
+				synchronized (session) {
+					return session.get(activationCode);
+				}
+			}
+
+			public List<License> getAll(List<String> activationCodes) throws Exception {
+				if (activationCodes.isEmpty()) {
+					return new ArrayList<License>(0);
+				}
+				String first = activationCodes.get(0);
+				String last = first;
+				for (String activationCode: activationCodes) {
+					if (activationCode.compareTo(first) < 0) {
+						first = activationCode;
+					} else if (activationCode.compareTo(last) > 0) {
+						last = activationCode;
+					}
+				}
+				Map<String, License> found;
+				synchronized (session) {
+					found = session.range(first, last);
+				}
+				// the range may hold codes that weren't asked for
+				List<License> licenses = new ArrayList<License>(activationCodes.size());
+				for (String activationCode: activationCodes) {
+					License license = found.get(activationCode);
+					if (license != null) {
+						licenses.add(license);
+					}
+				}
+				return licenses;
+			}
+
+			public void close() throws Exception {
+				session.connection.rollback();
+				session.connection.close();
+			}
+		};
+	}
+
+	public synchronized void close() throws Exception {
+		for (Session session: this.sessions) {
+			session.connection.close();
+		}
+		this.sessions.clear();
+		this.idle.clear();
+	}
+
+	private Session acquire() throws Exception {
+		Session session = this.idle.poll();
+		if (session == null) {
+			synchronized (this) {
+				if (this.sessions.size() < this.poolSize) {
+					session = new Session(this.connect());
+					this.sessions.add(session);
+				}
+			}
+			if (session == null) {
+				session = this.idle.take();
+			}
+		}
+		return session;
+	}
+
+	private void release(Session session) {
+		this.idle.offer(session);
+	}
+
+	private Connection connect() throws SQLException {
+		return DriverManager.getConnection(this.url, "sa", "");
+	}
+
+	// Visits a page of codes, returns the code to continue after or null when the scan is done.
+	private static String visit(List<String> page, Visitor visitor) throws Exception {
+		for (String activationCode: page) {
+			if (!visitor.visit(activationCode)) {
+				return null;
+			}
+		}
+		return page.size() < PAGE_SIZE ? null : page.get(page.size() - 1);
+	}
+
+	private static void bind(PreparedStatement statement, License license) throws SQLException {
+		statement.setString(1, license.activationCode);
+		statement.setString(2, license.licenseType);
+		statement.setInt(3, license.cert);
+		statement.setInt(4, license.quantity);
+		statement.setString(5, license.replacedBy);
+		statement.setString(6, license.upgradedFrom);
+		statement.setString(7, license.siteLicense);
+		statement.setString(8, license.firstName);
+		statement.setString(9, license.lastName);
+		statement.setString(10, license.canonicalName);
+		statement.setString(11, license.organization);
+		statement.setString(12, license.street);
+		statement.setString(13, license.city);
+		statement.setString(14, license.state);
+		statement.setString(15, license.country);
+		statement.setString(16, license.purchaseId);
+		statement.setString(17, license.email);
+		setDate(statement, 18, license.issued);
+		setDate(statement, 19, license.expire);
+		statement.setString(20, license.key);
+		statement.setLong(21, license.version);
+	}
+
+	private static License read(ResultSet result) throws SQLException {
+		License license = new License();
+		license.activationCode = result.getString(1);
+		license.licenseType = result.getString(2);
+		license.cert = result.getInt(3);
+		license.quantity = result.getInt(4);
+		license.replacedBy = result.getString(5);
+		license.upgradedFrom = result.getString(6);
+		license.siteLicense = result.getString(7);
+		license.firstName = result.getString(8);
+		license.lastName = result.getString(9);
+		license.canonicalName = result.getString(10);
+		license.organization = result.getString(11);
+		license.street = result.getString(12);
+		license.city = result.getString(13);
+		license.state = result.getString(14);
+		license.country = result.getString(15);
+		license.purchaseId = result.getString(16);
+		license.email = result.getString(17);
+		license.issued = getDate(result, 18);
+		license.expire = getDate(result, 19);
+		license.key = result.getString(20);
+		license.version = result.getLong(21);
+
+		// the defaults of fromMap
+		if (license.licenseType == null) {
+			license.licenseType = "User";
+		}
+		if (license.purchaseId == null && license.activationCode.length() > 0) {
+			license.purchaseId = Misc.getMD5Sum(license.activationCode);
+		}
+		if (license.issued == null) {
+			license.issued = Date.from(LocalDate.now().atStartOfDay(ZoneId.systemDefault()).toInstant());
+		}
+		return license;
+	}
+
+	private static void setDate(PreparedStatement statement, int index, Date date) throws SQLException {
+		if (date == null) {
+			statement.setNull(index, Types.DATE);
+		} else {
+			statement.setDate(index, new java.sql.Date(date.getTime()));
+		}
+	}
+
+	private static Date getDate(ResultSet result, int index) throws SQLException {
+		java.sql.Date date = result.getDate(index);
+		return date == null ? null : new Date(date.getTime());
+	}
+
+	// A connection and its prepared statements, used by one thread at a time.
+	private static class Session {
+
+		private final Connection connection;
+
+		private final PreparedStatement get;
+
+		private final PreparedStatement exists;
+
+		private final PreparedStatement merge;
+
+		private final PreparedStatement page;
+
+		private final PreparedStatement range;
+
+		private Session(Connection connection) throws SQLException {
+			StringBuilder columns = new StringBuilder();
+			StringBuilder parameters = new StringBuilder();
+			for (int i = 0; i < COLUMNS.length; i++) {
+				columns.append(i > 0 ? ", " : "").append(COLUMNS[i]);
+				parameters.append(i > 0 ? ", ?" : "?");
+			}
+			this.connection = connection;
+			this.get = connection.prepareStatement("SELECT " + columns + " FROM licenses WHERE activation_code = ?");
+			this.exists = connection.prepareStatement("SELECT 1 FROM licenses WHERE activation_code = ?");
+			this.merge = connection.prepareStatement("MERGE INTO licenses (" + columns + ") KEY (activation_code) VALUES (" + parameters + ")");
+			this.page = connection.prepareStatement("SELECT activation_code FROM licenses WHERE activation_code > ? ORDER BY activation_code LIMIT " + PAGE_SIZE);
+			this.range = connection.prepareStatement("SELECT " + columns + " FROM licenses WHERE activation_code BETWEEN ? AND ?");
+		}
+
+		private License get(String activationCode) throws SQLException {
+			this.get.setString(1, activationCode);
+			ResultSet result = this.get.executeQuery();
+			try {
+				return result.next() ? read(result) : null;
+			} finally {
+				result.close();
+			}
+		}
+
+		// the licenses from first to last by code
+		private Map<String, License> range(String first, String last) throws SQLException {
+			this.range.setString(1, first);
+			this.range.setString(2, last);
+			ResultSet result = this.range.executeQuery();
+			try {
+				Map<String, License> licenses = new HashMap<String, License>();
+				while (result.next()) {
+					License license = read(result);
+					licenses.put(license.activationCode, license);
+				}
+				return licenses;
+			} finally {
+				result.close();
+			}
+		}
+
+		private List<String> page(String after) throws SQLException {
+			this.page.setString(1, after);
+			ResultSet result = this.page.executeQuery();
+			try {
+				List<String> codes = new ArrayList<String>(PAGE_SIZE);
+				while (result.next()) {
+					codes.add(result.getString(1));
+				}
+				return codes;
+			} finally {
+				result.close();
+			}
+		}
+
+	}
+
+}
@@ -0,0 +1,146 @@
+package com.formreturn.license;
+
+import org.apache.commons.io.FileUtils;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.List;
+import java.util.TreeMap;
+
+// Journal of import progress. Records finish persisting out of order, so the journal tracks the
+// highest contiguous committed record (the watermark) and appends one line per interval:
+//   <sequence> <recordNumber> <offset> <line> <activationCode>
+// where offset and line point just past the committed record in the import file.
+public class ImportCheckpoint {
+
+	private final File journal;
+
+	private final String fingerprint;
+
+	private final int interval;
+
+	// records committed beyond the watermark, keyed by sequence
+	private final TreeMap<Long, Position> pending = new TreeMap<Long, Position>();
+
+	private Position watermark;
+
+	private long lastWritten;
+
+	private FileOutputStream out;
+
+	public ImportCheckpoint(File importFile, int interval) throws IOException {
+		this.journal = new File(Misc.getPath("checkpoints") + File.separator
+				+ Misc.getMD5Sum(importFile.getCanonicalPath()) + ".journal");
+		this.fingerprint = "file " + importFile.length() + " " + importFile.lastModified();
+		this.interval = interval;
+		this.watermark = new Position(0, 0, 0, 1, null);
+	}
+
+	// Loads the last complete checkpoint, returns null if there is none for this version of the import file.
+	public Position load() throws IOException {
+		if (!this.journal.exists()) {
+			return null;
+		}
+		List<String> lines = FileUtils.readLines(this.journal, "UTF-8");
+		if (lines.isEmpty() || !lines.get(0).equals(this.fingerprint)) {
+			return null;
+		}
+		Position last = null;
+		for (int i = 1; i < lines.size(); i++) {
+			// the activation code comes last and may hold spaces
+			String[] parts = lines.get(i).split(" ", 5);
+			if (parts.length != 5) {
+				// torn write of the final line
+				break;
+			}
+			try {
+				last = new Position(Long.parseLong(parts[0]), Long.parseLong(parts[1]),
+						Long.parseLong(parts[2]), Long.parseLong(parts[3]), parts[4]);
+			} catch (NumberFormatException nfe) {
+				break;
+			}
+		}
+		return last;
+	}
+
+	// Starts journaling, continuing from a loaded position when resuming.
+	public synchronized void open(Position start) throws IOException {
+		if (start != null) {
+			this.watermark = start;
+		}
+		this.lastWritten = this.watermark.sequence;
+		// the new header replaces the journal in one rename, a crash before it leaves the old checkpoint
+		File temp = new File(this.journal.getPath() + ".tmp");
+		this.out = new FileOutputStream(temp);
+		try {
+			this.write(this.fingerprint);
+			if (start != null) {
+				this.write(start.toString());
+			}
+		} finally {
+			this.out.close();
+		}
+		Files.move(temp.toPath(), this.journal.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+		this.out = new FileOutputStream(this.journal, true);
+	}
+
+	public synchronized void commit(long sequence, long recordNumber, long offset, long line, String activationCode) throws IOException {
+		this.pending.put(sequence, new Position(sequence, recordNumber, offset, line, activationCode));
+		while (!this.pending.isEmpty() && this.pending.firstKey() == this.watermark.sequence + 1) {
+			this.watermark = this.pending.remove(this.pending.firstKey());
+		}
+		if (this.interval > 0 && this.watermark.sequence - this.lastWritten >= this.interval) {
+			this.write(this.watermark.toString());
+			this.lastWritten = this.watermark.sequence;
+		}
+	}
+
+	// Import completed, the journal is no longer needed.
+	public synchronized void complete() throws IOException {
+		this.close();
+		FileUtils.deleteQuietly(this.journal);
+	}
+
+	public synchronized void close() throws IOException {
+		if (this.out != null) {
+			this.out.close();
+			this.out = null;
+		}
+	}
+
+	private void write(String line) throws IOException {
+		this.out.write((line + "\n").getBytes("UTF-8"));
+		this.out.flush();
+		this.out.getFD().sync();
+	}
+
+	public static class Position {
+
+		public final long sequence;
+
+		public final long recordNumber;
+
+		public final long offset;
+
+		public final long line;
+
+		public final String activationCode;
+
+		private Position(long sequence, long recordNumber, long offset, long line, String activationCode) {
+			this.sequence = sequence;
+			this.recordNumber = recordNumber;
+			this.offset = offset;
+			this.line = line;
+			this.activationCode = activationCode;
+		}
+
+		public String toString() {
+			return this.sequence + " " + this.recordNumber + " " + this.offset + " " + this.line + " " + this.activationCode;
+		}
+
+	}
+
+}
@@ -0,0 +1,74 @@
+package com.formreturn.license;
+
+public class ImportOptions extends Options {
+
+	// workers converting parsed records into licenses
+	public int mapWorkers = PROCESSORS;
+
+	// workers signing licenses, zero disables the signing stage unless redeem is set
+	public int signWorkers = 0;
+
+	// sign every imported record and store its key in the same pass
+	public boolean redeem = false;
+
+	// workers persisting licenses
+	public int saveWorkers = Math.max(1, PROCESSORS / 2);
+
+	// maximum number of licenses persisted in one batch
+	public int batchSize = 100;
+
+	// capacity of the bounded queues in front of each stage, split between its workers
+	public int queueSize = 1024;
+
+	// committed records between checkpoint journal entries, zero disables checkpoints
+	public int checkpointInterval = 10000;
+
+	// only write records that are new or changed since they were last imported
+	public boolean incremental = false;
+
+	// check every record without writing anything and report all problems
+	public boolean validate = false;
+
+	// records handed to a validation worker at a time
+	public int chunkSize = 1000;
+
+	// continue from the last checkpoint of an earlier, interrupted import of the same file
+	public boolean resume = false;
+
+	protected boolean apply(String name, String value) {
+		if (name.equals("--map-workers")) {
+			this.mapWorkers = parsePositive(name, value);
+		} else if (name.equals("--sign-workers")) {
+			this.signWorkers = value == null ? PROCESSORS : parseCount(name, value);
+		} else if (name.equals("--redeem") && value == null) {
+			this.redeem = true;
+		} else if (name.equals("--save-workers")) {
+			this.saveWorkers = parsePositive(name, value);
+		} else if (name.equals("--batch-size")) {
+			this.batchSize = parsePositive(name, value);
+		} else if (name.equals("--queue-size")) {
+			this.queueSize = parsePositive(name, value);
+		} else if (name.equals("--checkpoint")) {
+			this.checkpointInterval = parseCount(name, value);
+		} else if (name.equals("--resume") && value == null) {
+			this.resume = true;
+		} else if (name.equals("--incremental") && value == null) {
+			this.incremental = true;
+		} else if (name.equals("--validate") && value == null) {
+			this.validate = true;
+		} else if (name.equals("--chunk-size")) {
+			this.chunkSize = parsePositive(name, value);
+		} else {
+			return false;
+		}
+		return true;
+	}
+
+	public int getSignWorkers() {
+		if (this.signWorkers == 0 && this.redeem) {
+			return PROCESSORS;
+		}
+		return this.signWorkers;
+	}
+
+}
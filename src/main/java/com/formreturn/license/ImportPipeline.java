@@ -0,0 +1,444 @@
+package com.formreturn.license;
+
+import java.io.File;
+import java.text.ParseException;
+import java.text.SimpleDateFormat;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+// Imports an order export through bounded queues between a parser stage,
+// a parallel mapping stage, an optional signing stage and a batched persistence stage.
+// Every worker has its own input queue and records are routed by the hash of their
+// couponCode, so all records of one code pass the same worker of each stage in file order
+// and the last record of a duplicated code is the one stored, as in a sequential import.
+public class ImportPipeline {
+
+	static final String REDEEMED_FORMAT = "yyyy-MM-dd HH:mm:ss";
+
+	private static final ImportRecord END = new ImportRecord(-1, -1, null);
+
+	private final ImportOptions options;
+
+	private final AtomicLong saved = new AtomicLong();
+
+	private final AtomicLong signed = new AtomicLong();
+
+	private final AtomicLong added = new AtomicLong();
+
+	private final AtomicLong changed = new AtomicLong();
+
+	private final AtomicLong unchanged = new AtomicLong();
+
+	private ContentIndex contentIndex;
+
+	private long elapsed;
+
+	private ImportCheckpoint checkpoint;
+
+	private ImportCheckpoint.Position resumedFrom;
+
+	private volatile Throwable failure;
+
+	private ExecutorService executor;
+
+	public ImportPipeline(ImportOptions options) {
+		this.options = options;
+	}
+
+	public long run(File importFile) throws Exception {
+		int signWorkers = this.options.getSignWorkers();
+		List<BlockingQueue<ImportRecord>> parsed = this.queues(this.options.mapWorkers);
+		List<BlockingQueue<ImportRecord>> saving = this.queues(this.options.saveWorkers);
+		List<BlockingQueue<ImportRecord>> mapped = signWorkers > 0 ? this.queues(signWorkers) : saving;
+
+		this.checkpoint = null;
+		this.resumedFrom = null;
+		if (this.options.checkpointInterval > 0 || this.options.resume) {
+			this.checkpoint = new ImportCheckpoint(importFile, this.options.checkpointInterval);
+			if (this.options.resume) {
+				this.resumedFrom = this.checkpoint.load();
+			}
+			this.checkpoint.open(this.resumedFrom);
+		}
+
+		int workers = this.options.mapWorkers + signWorkers + this.options.saveWorkers;
+		long start = System.currentTimeMillis();
+		this.executor = Executors.newFixedThreadPool(workers);
+		this.failure = null;
+		this.saved.set(0);
+		this.signed.set(0);
+		this.added.set(0);
+		this.changed.set(0);
+		this.unchanged.set(0);
+
+		this.contentIndex = null;
+		if (this.options.incremental) {
+			this.contentIndex = ContentIndex.getDefault();
+			this.contentIndex.open();
+		}
+
+		// MAPPING STAGE
+		AtomicInteger mapping = new AtomicInteger(this.options.mapWorkers);
+		for (int i = 0; i < this.options.mapWorkers; i++) {
+			this.executor.execute(new Stage(parsed.get(i), mapped, mapping) {
+				protected void process(ImportRecord record) throws Exception {
+					record.license = createLicenseFromImportMap(record.map);
+					record.map = null;
+					if (contentIndex != null) {
+						// compare with the hash of the last import of this code instead of reading the stored file
+						record.hash = ContentIndex.hash(record.license);
+						Long previous = contentIndex.get(record.license.activationCode);
+						// a wiped store leaves the hashes behind, only an existing record can be unchanged
+						record.unchanged = previous != null && previous == record.hash
+								&& LicenseStores.getDefault().exists(record.license.activationCode);
+					}
+				}
+			});
+		}
+
+		// SIGNING STAGE
+		if (signWorkers > 0) {
+			AtomicInteger signing = new AtomicInteger(signWorkers);
+			for (int i = 0; i < signWorkers; i++) {
+				this.executor.execute(new Stage(mapped.get(i), saving, signing) {
+					protected void process(ImportRecord record) throws Exception {
+						if (record.unchanged) {
+							return;
+						}
+						// the generator reuses this worker's warm LicenseManager and sets license.key
+						new LicenseGenerator(record.license).generateLicense();
+						ImportPipeline.this.signed.incrementAndGet();
+					}
+				});
+			}
+		}
+
+		// PERSISTENCE STAGE
+		for (int i = 0; i < this.options.saveWorkers; i++) {
+			this.executor.execute(new SaveStage(saving.get(i)));
+		}
+
+		this.executor.shutdown();
+
+		// PARSER STAGE (runs on the calling thread)
+		ImportReader reader = null;
+		try {
+			long sequence = 0;
+			if (this.resumedFrom != null) {
+				reader = new ImportReader(importFile, this.resumedFrom.offset, this.resumedFrom.recordNumber, this.resumedFrom.line);
+				sequence = this.resumedFrom.sequence;
+			} else {
+				reader = new ImportReader(importFile);
+			}
+			Map map;
+			while (this.failure == null && (map = reader.next()) != null) {
+				ImportRecord record = new ImportRecord(++sequence, reader.getRecordNumber(), map);
+				record.offset = reader.getOffset();
+				record.line = reader.getLine();
+				Object code = map.get("couponCode");
+				record.route = code == null ? 0 : code.hashCode() & Integer.MAX_VALUE;
+				this.offer(route(parsed, record), record);
+			}
+			for (BlockingQueue<ImportRecord> queue: parsed) {
+				this.offer(queue, END);
+			}
+		} catch (Exception ex) {
+			this.fail(ex);
+		} finally {
+			if (reader != null) {
+				reader.close();
+			}
+		}
+
+		while (!this.executor.awaitTermination(1, TimeUnit.SECONDS)) {
+			if (this.failure != null) {
+				this.executor.shutdownNow();
+			}
+		}
+		this.elapsed = System.currentTimeMillis() - start;
+
+		if (this.contentIndex != null) {
+			this.contentIndex.close();
+		}
+
+		if (this.checkpoint != null) {
+			if (this.failure == null) {
+				this.checkpoint.complete();
+			} else {
+				// keep the journal so the import can be resumed
+				this.checkpoint.close();
+			}
+		}
+
+		if (this.failure != null) {
+			if (this.failure instanceof Exception) {
+				throw (Exception) this.failure;
+			}
+			throw new Exception(this.failure);
+		}
+
+		return this.saved.get();
+	}
+
+	public long getSaved() {
+		return this.saved.get();
+	}
+
+	public long getAdded() {
+		return this.added.get();
+	}
+
+	public long getChanged() {
+		return this.changed.get();
+	}
+
+	public long getUnchanged() {
+		return this.unchanged.get();
+	}
+
+	public long getSigned() {
+		return this.signed.get();
+	}
+
+	// Checkpoint the last run resumed from, null if it started at the beginning of the file.
+	public ImportCheckpoint.Position getResumedFrom() {
+		return this.resumedFrom;
+	}
+
+	public long getElapsedMillis() {
+		return this.elapsed;
+	}
+
+	// Licenses persisted per second over the last run.
+	public double getThroughput() {
+		return this.saved.get() * 1000.0 / Math.max(1, this.elapsed);
+	}
+
+	// Splits the queue capacity of a stage between its workers.
+	private List<BlockingQueue<ImportRecord>> queues(int workers) {
+		List<BlockingQueue<ImportRecord>> queues = new ArrayList<BlockingQueue<ImportRecord>>(workers);
+		for (int i = 0; i < workers; i++) {
+			queues.add(new ArrayBlockingQueue<ImportRecord>(Math.max(1, this.options.queueSize / workers)));
+		}
+		return queues;
+	}
+
+	private static BlockingQueue<ImportRecord> route(List<BlockingQueue<ImportRecord>> queues, ImportRecord record) {
+		return queues.get(record.route % queues.size());
+	}
+
+	private void offer(BlockingQueue<ImportRecord> queue, ImportRecord record) throws InterruptedException {
+		while (!queue.offer(record, 100, TimeUnit.MILLISECONDS)) {
+			if (this.failure != null) {
+				return;
+			}
+		}
+	}
+
+	private synchronized void fail(Throwable ex) {
+		if (this.failure == null) {
+			this.failure = ex;
+			this.executor.shutdownNow();
+		}
+	}
+
+	static License createLicenseFromImportMap(Map map) throws Exception {
+		License license = new License();
+		license.activationCode = (String) map.get("couponCode");
+
+		if (map.containsKey("certType")) {
+			license.cert = Integer.parseInt((String) map.get("certType"));
+		}
+
+		if (map.containsKey("licenseType")) {
+			license.licenseType = (String) map.get("licenseType");
+		}
+
+		if (map.containsKey("firstname")) {
+			license.firstName = (String) map.get("firstname");
+		}
+
+		if (map.containsKey("lastname")) {
+			license.lastName = (String) map.get("lastname");
+		}
+
+		if (map.containsKey("organization")) {
+			license.organization = (String) map.get("organization");
+		}
+
+		if (map.containsKey("city")) {
+			license.city = (String) map.get("city");
+		}
+
+		if (map.containsKey("state")) {
+			license.state = (String) map.get("state");
+		}
+
+		if (map.containsKey("country")) {
+			license.country = (String) map.get("country");
+		}
+
+		if (map.containsKey("orderRef")) {
+			license.purchaseId = (String) map.get("orderRef");
+		}
+
+		if (map.containsKey("email")) {
+			license.email = (String) map.get("email");
+		}
+
+		if (map.containsKey("redeemed")) {
+			try {
+				license.issued = new SimpleDateFormat(REDEEMED_FORMAT).parse((String) map.get("redeemed"));
+			} catch (ParseException pex) {
+				pex.printStackTrace();
+			}
+		}
+
+		return license;
+	}
+
+	private static class ImportRecord {
+
+		// position among the non-null records, used for the checkpoint watermark
+		private final long sequence;
+
+		private final long number;
+
+		// non-negative hash of the couponCode, picks the worker of every stage
+		private int route;
+
+		// offset and line just past the record in the import file
+		private long offset;
+
+		private long line;
+
+		private Map map;
+
+		private License license;
+
+		// content hash and comparison result of incremental imports
+		private long hash;
+
+		private boolean unchanged;
+
+		private ImportRecord(long sequence, long number, Map map) {
+			this.sequence = sequence;
+			this.number = number;
+			this.map = map;
+		}
+
+	}
+
+	private abstract class Stage implements Runnable {
+
+		private final BlockingQueue<ImportRecord> in;
+
+		private final List<BlockingQueue<ImportRecord>> out;
+
+		// workers of this stage still running, the last one to finish passes END to every downstream worker
+		private final AtomicInteger running;
+
+		private Stage(BlockingQueue<ImportRecord> in, List<BlockingQueue<ImportRecord>> out, AtomicInteger running) {
+			this.in = in;
+			this.out = out;
+			this.running = running;
+		}
+
+		protected abstract void process(ImportRecord record) throws Exception;
+
+		public void run() {
+			ImportRecord record = null;
+			try {
+				while ((record = this.in.take()) != END) {
+					this.process(record);
+					route(this.out, record).put(record);
+				}
+				if (this.running.decrementAndGet() == 0) {
+					for (BlockingQueue<ImportRecord> queue: this.out) {
+						queue.put(END);
+					}
+				}
+			} catch (InterruptedException iex) {
+				// pipeline aborted
+			} catch (Throwable ex) {
+				fail(new Exception("Import record " + record.number + ": " + ex.getMessage(), ex));
+			}
+		}
+
+	}
+
+	private class SaveStage implements Runnable {
+
+		private final BlockingQueue<ImportRecord> in;
+
+		private SaveStage(BlockingQueue<ImportRecord> in) {
+			this.in = in;
+		}
+
+		public void run() {
+			List<ImportRecord> batch = new ArrayList<ImportRecord>(options.batchSize);
+			List<License> licenses = new ArrayList<License>(options.batchSize);
+			try {
+				boolean done = false;
+				while (!done) {
+					batch.clear();
+					licenses.clear();
+					batch.add(this.in.take());
+					this.in.drainTo(batch, options.batchSize - 1);
+					for (ImportRecord record: batch) {
+						if (record == END) {
+							done = true;
+						} else if (record.unchanged) {
+							unchanged.incrementAndGet();
+						} else {
+							licenses.add(record.license);
+						}
+					}
+					if (licenses.size() > 0) {
+						if (contentIndex != null) {
+							LicenseStore store = LicenseStores.getDefault();
+							for (License license: licenses) {
+								if (contentIndex.get(license.activationCode) != null || store.exists(license.activationCode)) {
+									changed.incrementAndGet();
+								} else {
+									added.incrementAndGet();
+								}
+							}
+						}
+						License.saveAll(licenses);
+						saved.addAndGet(licenses.size());
+						if (contentIndex != null) {
+							for (ImportRecord record: batch) {
+								if (record != END && !record.unchanged) {
+									contentIndex.put(record.license.activationCode, record.hash);
+								}
+							}
+						}
+					}
+					// unchanged records count as committed too, or the watermark would stop at them
+					if (checkpoint != null) {
+						for (ImportRecord record: batch) {
+							if (record != END) {
+								checkpoint.commit(record.sequence, record.number, record.offset, record.line, record.license.activationCode);
+							}
+						}
+					}
+				}
+			} catch (InterruptedException iex) {
+				// pipeline aborted
+			} catch (Throwable ex) {
+				fail(new Exception("Import batch from record " + batch.get(0).number + ": " + ex.getMessage(), ex));
+			}
+		}
+
+	}
+
+}
@@ -0,0 +1,197 @@
+package com.formreturn.license;
+
+import com.google.gson.Gson;
+import com.google.gson.stream.JsonReader;
+
+import java.io.BufferedInputStream;
+import java.io.ByteArrayInputStream;
+import java.io.Closeable;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.util.Map;
+
+// Walks the top level array of an import file one object at a time. Each object is framed
+// byte by byte so its exact position in the file is known (for checkpoints and error reports)
+// and then parsed with a Gson JsonReader. Only the current record is held in memory.
+public class ImportReader implements Closeable {
+
+	private final Gson gson = new Gson();
+
+	private final InputStream in;
+
+	// bytes of the file consumed so far
+	private long position;
+
+	// current line of the file (1 based)
+	private long line;
+
+	// true once the opening bracket of the top level array has been consumed
+	private boolean started;
+
+	private boolean finished;
+
+	// position of the last record returned within the top level array (1 based)
+	private long recordNumber;
+
+	// line on which the last record returned starts
+	private long recordLine;
+
+	private byte[] buffer = new byte[4096];
+
+	private int length;
+
+	public ImportReader(File importFile) throws IOException {
+		this(importFile, 0, 0, 1);
+	}
+
+	// Opens the file positioned at a record boundary previously reported by getOffset().
+	public ImportReader(File importFile, long offset, long recordNumber, long line) throws IOException {
+		FileInputStream fis = new FileInputStream(importFile);
+		try {
+			fis.getChannel().position(offset);
+		} catch (IOException ex) {
+			fis.close();
+			throw ex;
+		}
+		this.in = new BufferedInputStream(fis, 65536);
+		this.position = offset;
+		this.started = offset > 0;
+		this.recordNumber = recordNumber;
+		this.line = line;
+	}
+
+	// Returns the next object of the top level array, or null once the array is exhausted.
+	public Map next() throws IOException {
+		if (this.finished) {
+			return null;
+		}
+		if (!this.started) {
+			int b = this.skipWhitespace();
+			if (b == 0xEF) {
+				// UTF-8 byte order mark
+				this.read();
+				this.read();
+				b = this.skipWhitespace();
+			}
+			if (b != '[') {
+				throw this.syntaxError("Import file does not start with an array");
+			}
+			this.started = true;
+		}
+		while (true) {
+			int b = this.skipWhitespace();
+			if (b == ',') {
+				continue;
+			}
+			if (b == ']') {
+				this.finished = true;
+				return null;
+			}
+			if (b == -1) {
+				throw this.syntaxError("Unexpected end of import file");
+			}
+			this.recordNumber++;
+			this.recordLine = this.line;
+			if (b == 'n') {
+				if (this.read() != 'u' || this.read() != 'l' || this.read() != 'l') {
+					throw this.syntaxError("Unexpected value in import array");
+				}
+				continue;
+			}
+			if (b != '{') {
+				throw this.syntaxError("Expected an object in import array");
+			}
+			this.frameObject();
+			JsonReader reader = new JsonReader(new InputStreamReader(new ByteArrayInputStream(this.buffer, 0, this.length), "UTF-8"));
+			return this.gson.fromJson(reader, Map.class);
+		}
+	}
+
+	public long getRecordNumber() {
+		return this.recordNumber;
+	}
+
+	public long getRecordLine() {
+		return this.recordLine;
+	}
+
+	// Byte offset just past the last record returned, a safe point to resume reading from.
+	public long getOffset() {
+		return this.position;
+	}
+
+	public long getLine() {
+		return this.line;
+	}
+
+	public void close() throws IOException {
+		this.in.close();
+	}
+
+	// Copies the object whose opening brace was just read into the buffer.
+	private void frameObject() throws IOException {
+		this.length = 0;
+		this.append('{');
+		int depth = 1;
+		boolean inString = false;
+		boolean escaped = false;
+		while (depth > 0) {
+			int b = this.read();
+			if (b == -1) {
+				throw this.syntaxError("Unexpected end of import file inside record " + this.recordNumber);
+			}
+			this.append(b);
+			if (inString) {
+				if (escaped) {
+					escaped = false;
+				} else if (b == '\\') {
+					escaped = true;
+				} else if (b == '"') {
+					inString = false;
+				}
+			} else if (b == '"') {
+				inString = true;
+			} else if (b == '{' || b == '[') {
+				depth++;
+			} else if (b == '}' || b == ']') {
+				depth--;
+			}
+		}
+	}
+
+	private void append(int b) {
+		if (this.length == this.buffer.length) {
+			byte[] grown = new byte[this.buffer.length * 2];
+			System.arraycopy(this.buffer, 0, grown, 0, this.length);
+			this.buffer = grown;
+		}
+		this.buffer[this.length++] = (byte) b;
+	}
+
+	private int skipWhitespace() throws IOException {
+		int b;
+		do {
+			b = this.read();
+		} while (b == ' ' || b == '\t' || b == '\r' || b == '\n');
+		return b;
+	}
+
+	private int read() throws IOException {
+		int b = this.in.read();
+		if (b != -1) {
+			this.position++;
+			if (b == '\n') {
+				this.line++;
+			}
+		}
+		return b;
+	}
+
+	private IOException syntaxError(String message) {
+		return new IOException(message + " at line " + this.line + " (byte " + this.position + ")");
+	}
+
+}
@@ -0,0 +1,292 @@
+package com.formreturn.license;
+
+import java.io.File;
+import java.io.PrintStream;
+import java.text.ParsePosition;
+import java.text.SimpleDateFormat;
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+
+// Dry run of an import: every record goes through the checks and conversions of
+// ImportPipeline.createLicenseFromImportMap in parallel chunks, nothing is written,
+// and all problems are reported together with their line numbers.
+//
+// Duplicate codes are found without holding every code: the first pass adds the codes to a Bloom filter
+// of about a thirty-second of the file size and keeps only the codes it had already seen, the real
+// duplicates and a few false positives. If there are any, a second pass over the file reports the
+// records after the first one of each of those codes.
+public class ImportValidator {
+
+	private static final String[] TEXT_FIELDS = new String[] {
+			"couponCode", "certType", "licenseType", "firstname", "lastname", "organization",
+			"city", "state", "country", "orderRef", "email", "redeemed"
+	};
+
+	private final ImportOptions options;
+
+	private static final int BLOOM_HASHES = 7;
+
+	// codes the Bloom filter had seen before, checked again in the second pass
+	private final Set<String> suspects = new HashSet<String>();
+
+	private BitSet bloom;
+
+	private long bloomBits;
+
+	private long records;
+
+	public ImportValidator(ImportOptions options) {
+		this.options = options;
+	}
+
+	// Returns the problems found, ordered by line. A structural error that stops the scan is reported last.
+	public List<Problem> run(File importFile) throws Exception {
+		ExecutorService executor = Executors.newFixedThreadPool(this.options.mapWorkers);
+		// bound the chunks in flight so the records held don't grow with the input size
+		final Semaphore inFlight = new Semaphore(this.options.mapWorkers * 2);
+		List<Future<List<Problem>>> results = new ArrayList<Future<List<Problem>>>();
+		List<Problem> problems = new ArrayList<Problem>();
+		Problem fatal = null;
+		this.records = 0;
+		this.suspects.clear();
+		// a record takes a few hundred bytes, so this is tens of bits per code
+		this.bloomBits = Math.max(1 << 16, Math.min(Integer.MAX_VALUE, importFile.length() / 4));
+		this.bloom = new BitSet((int) this.bloomBits);
+
+		ImportReader reader = new ImportReader(importFile);
+		try {
+			List<Entry> chunk = new ArrayList<Entry>(this.options.chunkSize);
+			Map map;
+			while (true) {
+				try {
+					map = reader.next();
+				} catch (Exception ex) {
+					fatal = new Problem(reader.getLine(), reader.getRecordNumber(), ex.getMessage());
+					break;
+				}
+				if (map == null) {
+					break;
+				}
+				this.records++;
+				Object code = map.get("couponCode");
+				if (code instanceof String && !this.addToBloom((String) code)) {
+					this.suspects.add((String) code);
+				}
+				chunk.add(new Entry(reader.getRecordLine(), reader.getRecordNumber(), map));
+				if (chunk.size() == this.options.chunkSize) {
+					results.add(this.submit(executor, inFlight, chunk));
+					chunk = new ArrayList<Entry>(this.options.chunkSize);
+					this.collectDone(results, problems);
+				}
+			}
+			if (!chunk.isEmpty()) {
+				results.add(this.submit(executor, inFlight, chunk));
+			}
+			for (Future<List<Problem>> result: results) {
+				problems.addAll(result.get());
+			}
+		} finally {
+			reader.close();
+			executor.shutdownNow();
+			executor.awaitTermination(1, TimeUnit.MINUTES);
+		}
+		this.bloom = null;
+		if (!this.suspects.isEmpty()) {
+			this.findDuplicates(importFile, problems);
+		}
+
+		Collections.sort(problems, new Comparator<Problem>() {
+			public int compare(Problem a, Problem b) {
+				return a.record < b.record ? -1 : (a.record > b.record ? 1 : 0);
+			}
+		});
+		if (fatal != null) {
+			problems.add(fatal);
+		}
+		return problems;
+	}
+
+	public long getRecords() {
+		return this.records;
+	}
+
+	public static void report(List<Problem> problems, PrintStream out) {
+		for (Problem problem: problems) {
+			out.println("line " + problem.line + " (record " + problem.record + "): " + problem.message);
+		}
+	}
+
+	// Second pass: reports every record of a suspect code after its first, up to where the first pass stopped.
+	private void findDuplicates(File importFile, List<Problem> problems) throws Exception {
+		HashMap<String, Long> first = new HashMap<String, Long>();
+		ImportReader reader = new ImportReader(importFile);
+		try {
+			Map map;
+			for (long i = 0; i < this.records && (map = reader.next()) != null; i++) {
+				Object code = map.get("couponCode");
+				if (code instanceof String && this.suspects.contains(code)) {
+					Long line = first.get(code);
+					if (line == null) {
+						first.put((String) code, reader.getRecordLine());
+					} else {
+						problems.add(new Problem(reader.getRecordLine(), reader.getRecordNumber(),
+								"couponCode " + code + " duplicates line " + line));
+					}
+				}
+			}
+		} finally {
+			reader.close();
+		}
+	}
+
+	// Sets the bits of the code, returns false if they were all set already.
+	private boolean addToBloom(String code) {
+		// 64 bit FNV-1a, split into the two hashes of the double hashing
+		long hash = 0xCBF29CE484222325L;
+		for (int i = 0; i < code.length(); i++) {
+			hash ^= code.charAt(i);
+			hash *= 0x100000001B3L;
+		}
+		hash ^= hash >>> 29;
+		long h1 = hash >>> 32;
+		long h2 = hash | 1;
+		boolean added = false;
+		for (int i = 0; i < BLOOM_HASHES; i++) {
+			int bit = (int) (((h1 + i * h2) & Long.MAX_VALUE) % this.bloomBits);
+			if (!this.bloom.get(bit)) {
+				this.bloom.set(bit);
+				added = true;
+			}
+		}
+		return added;
+	}
+
+	private Future<List<Problem>> submit(ExecutorService executor, final Semaphore inFlight, final List<Entry> chunk) throws InterruptedException {
+		inFlight.acquire();
+		return executor.submit(new Callable<List<Problem>>() {
+			public List<Problem> call() {
+				try {
+					List<Problem> problems = new ArrayList<Problem>();
+					for (Entry record: chunk) {
+						for (String message: validate(record)) {
+							problems.add(new Problem(record.line, record.number, message));
+						}
+					}
+					return problems;
+				} finally {
+					inFlight.release();
+				}
+			}
+		});
+	}
+
+	// collects finished chunks in submission order so the pending list stays short
+	private void collectDone(List<Future<List<Problem>>> results, List<Problem> problems) throws Exception {
+		while (!results.isEmpty() && results.get(0).isDone()) {
+			problems.addAll(results.remove(0).get());
+		}
+	}
+
+	private List<String> validate(Entry record) {
+		List<String> messages = new ArrayList<String>();
+		Map map = record.map;
+
+		for (String field: TEXT_FIELDS) {
+			Object value = map.get(field);
+			if (value != null && !(value instanceof String)) {
+				messages.add(field + " must be a string: " + value);
+			}
+		}
+		if (!messages.isEmpty()) {
+			return messages;
+		}
+
+		String code = (String) map.get("couponCode");
+		if (code == null) {
+			messages.add("couponCode is missing");
+		} else {
+			try {
+				new License().validateActivationCode(code);
+			} catch (Exception ex) {
+				messages.add("couponCode " + code + ": " + ex.getMessage());
+			}
+		}
+
+		if (map.containsKey("certType")) {
+			String certType = (String) map.get("certType");
+			try {
+				int cert = Integer.parseInt(certType);
+				if (cert != License.USER_LICENSE && cert != License.TIMED_LICENSE && cert != License.SERVER_LICENSE) {
+					messages.add("certType " + certType + " is not a known certificate type");
+				}
+			} catch (NumberFormatException nfe) {
+				messages.add("certType is not a number: " + certType);
+			}
+		}
+
+		if (map.containsKey("redeemed")) {
+			String redeemed = (String) map.get("redeemed");
+			SimpleDateFormat format = new SimpleDateFormat(ImportPipeline.REDEEMED_FORMAT);
+			ParsePosition position = new ParsePosition(0);
+			if (redeemed == null || format.parse(redeemed, position) == null) {
+				messages.add("redeemed is not a " + ImportPipeline.REDEEMED_FORMAT + " date: " + redeemed);
+			}
+		}
+
+		if (messages.isEmpty()) {
+			// anything else the import itself would trip over
+			try {
+				ImportPipeline.createLicenseFromImportMap(map);
+			} catch (Exception ex) {
+				messages.add(ex.toString());
+			}
+		}
+		return messages;
+	}
+
+	private static class Entry {
+
+		private final long line;
+
+		private final long number;
+
+		private final Map map;
+
+		private Entry(long line, long number, Map map) {
+			this.line = line;
+			this.number = number;
+			this.map = map;
+		}
+
+	}
+
+	public static class Problem {
+
+		public final long line;
+
+		public final long record;
+
+		public final String message;
+
+		private Problem(long line, long record, String message) {
+			this.line = line;
+			this.record = record;
+			this.message = message;
+		}
+
+	}
+
+}
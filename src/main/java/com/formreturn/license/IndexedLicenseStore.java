@@ -0,0 +1,90 @@
+package com.formreturn.license;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+
+// Puts an ActivationCodeIndex in front of a store: codes the index doesn't hold are answered without touching
+// the store. Codes are indexed, and unless syncing is off forced to disk, before the license is written, so
+// the index never misses a stored code, not even after a crash; a code it holds is still confirmed by the store.
+// That takes every process that saves to see the same index file, so it isn't used when the store is shared
+// between machines (see LicenseStores).
+//
+// Records can still reach the store without passing here: saved while it was marked shared, or put back
+// with tar or rsync along with an older .generation file. The index header records the generation of the
+// store (see LicenseStores.getGeneration) it was last opened with, and each open moves both to a new one,
+// so an index that doesn't match the store's generation is rebuilt. Record files copied in on their own
+// leave the generation alone and still need --rebuild-index.
+public class IndexedLicenseStore extends ForwardingLicenseStore {
+
+	private final ActivationCodeIndex index;
+
+	public IndexedLicenseStore(LicenseStore store, ActivationCodeIndex index) throws Exception {
+		super(store);
+		this.index = index;
+		if (!index.open() || index.getGeneration() != LicenseStores.getGeneration()) {
+			// new index, one we couldn't read, or one that missed saves
+			index.rebuild(store);
+		}
+		this.advanceGeneration();
+	}
+
+	public License get(String activationCode) throws Exception {
+		if (this.isAbsent(activationCode)) {
+			return null;
+		}
+		return this.store.get(activationCode);
+	}
+
+	public boolean exists(String activationCode) throws Exception {
+		if (this.isAbsent(activationCode)) {
+			return false;
+		}
+		return this.store.exists(activationCode);
+	}
+
+	public void put(License license) throws Exception {
+		this.index.add(license.activationCode);
+		this.store.put(license);
+	}
+
+	public void putAll(Collection<License> licenses) throws Exception {
+		List<String> codes = new ArrayList<String>(licenses.size());
+		for (License license: licenses) {
+			codes.add(license.activationCode);
+		}
+		this.index.addAll(codes);
+		this.store.putAll(licenses);
+	}
+
+	public void close() throws Exception {
+		try {
+			this.store.close();
+		} finally {
+			this.index.close();
+		}
+	}
+
+	// With syncing off, a crash of the machine may have lost codes from the index that the store kept.
+	public void rebuildIndex() throws Exception {
+		this.index.rebuild(this.store);
+		this.advanceGeneration();
+	}
+
+	public ActivationCodeIndex getIndex() {
+		return this.index;
+	}
+
+	// The index goes first, a crash before the store follows only costs a rebuild.
+	private void advanceGeneration() throws Exception {
+		long generation = LicenseStores.newGeneration();
+		this.index.setGeneration(generation);
+		LicenseStores.setGeneration(generation);
+	}
+
+	// codes the index can't hold have to be looked up in the store
+	private boolean isAbsent(String activationCode) throws Exception {
+		return ActivationCodeIndex.isPackable(activationCode) && !this.index.contains(activationCode);
+	}
+
+}
@@ -0,0 +1,324 @@
+package com.formreturn.license;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedWriter;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStreamWriter;
+import java.io.RandomAccessFile;
+import java.io.Writer;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.util.Random;
+
+// Append-only file of tab separated text lines shared by all processes using the store. Lines are appended
+// with a single write under a lock on the file, so those of different processes don't interleave even where
+// appends aren't atomic (NFS), and every reader applies the file in file order through read, picking up where
+// it left off, so all processes end up in the same state.
+//
+// A journal starts with a "#<generation>" line, a random number given to each new file. Rebuilding moves a
+// new file over the journal, which the processes that have it open notice by the generation: they start
+// over from the top of the new file (Handler.reset) and append to it rather than to the replaced one.
+// Journals from before the header are generation 0. The lines appended to the old journal while a rebuild
+// ran are copied onto the end of the new file before it is moved over, so changes saved meanwhile survive.
+//
+// A journal keeps every change, so the indexes compact it when they open it and find far more lines than
+// entries: compact rewrites it as the handler's current state under the lock appends take.
+public class Journal {
+
+	public interface Handler {
+
+		void apply(String[] fields);
+
+		// Everything applied so far is void, the lines of the journal follow from its beginning.
+		void reset();
+
+		// Writes lines that rebuild the current state when applied, for compact.
+		void write(Writer out) throws IOException;
+
+	}
+
+	private static final Random random = new Random();
+
+	private final File file;
+
+	private FileChannel channel;
+
+	// of the file the channel is open on
+	private long generation;
+
+	// bytes applied so far, header included
+	private long position;
+
+	// lines applied since the journal was opened
+	private long lines;
+
+	// the file was replaced, the handler has to be reset before lines are applied
+	private boolean replaced;
+
+	// of a rebuild: the generation and length of the journal it replaces when the rebuild started
+	private long rebuildGeneration;
+
+	private long rebuildFrom;
+
+	public Journal(File file) {
+		this.file = file;
+	}
+
+	// Returns false if the journal didn't exist yet. Reading starts over from its beginning.
+	public boolean open() throws IOException {
+		boolean exists = this.file.exists() && this.file.length() > 0;
+		this.close();
+		this.channel = new RandomAccessFile(this.file, "rw").getChannel();
+		FileLock lock = this.channel.lock();
+		try {
+			if (this.channel.size() == 0) {
+				this.channel.write(ByteBuffer.wrap(("#" + newGeneration() + "\n").getBytes("UTF-8")), 0);
+			}
+			this.generation = readGeneration(this.channel);
+		} finally {
+			lock.release();
+		}
+		this.position = 0;
+		this.lines = 0;
+		this.replaced = false;
+		return exists;
+	}
+
+	// lines are complete, each ending in a line break
+	public void append(String lines) throws IOException {
+		byte[] bytes = lines.getBytes("UTF-8");
+		// replaceWith holds this lock while it renames, so the file can't be replaced under the write
+		FileLock lock = this.lockCurrent();
+		try {
+			ByteBuffer buffer = ByteBuffer.wrap(bytes);
+			long end = this.channel.size();
+			while (buffer.hasRemaining()) {
+				end += this.channel.write(buffer, end);
+			}
+		} finally {
+			if (lock.isValid()) {
+				lock.release();
+			}
+		}
+	}
+
+	// Applies the lines appended since the last call. A torn last line is left for the next call.
+	public void read(Handler handler) throws IOException {
+		FileInputStream fis = new FileInputStream(this.file);
+		try {
+			FileChannel channel = fis.getChannel();
+			if (readGeneration(channel) != this.generation) {
+				this.reopen();
+			}
+			if (this.replaced) {
+				handler.reset();
+				this.replaced = false;
+			}
+			if (channel.size() == this.position) {
+				return;
+			}
+			channel.position(this.position);
+			InputStream in = new BufferedInputStream(fis, 65536);
+			ByteArrayOutputStream line = new ByteArrayOutputStream(80);
+			int b;
+			while ((b = in.read()) >= 0) {
+				if (b != '\n') {
+					line.write(b);
+					continue;
+				}
+				String text = line.toString("UTF-8");
+				boolean header = this.position == 0 && text.startsWith("#");
+				this.position += line.size() + 1;
+				line.reset();
+				if (!header) {
+					handler.apply(text.split("\t", -1));
+					this.lines++;
+				}
+			}
+		} finally {
+			fis.close();
+		}
+	}
+
+	public long getLines() {
+		return this.lines;
+	}
+
+	// Rewrites the journal as the lines the handler writes of its state, once it has read what other processes
+	// appended. Their appends wait for the lock meanwhile and go to the new file afterwards, so none are lost.
+	public void compact(Handler handler) throws IOException {
+		FileLock lock = this.channel.lock();
+		try {
+			long generation = this.generation;
+			this.read(handler);
+			if (this.generation != generation) {
+				// a rebuild replaced it meanwhile
+				return;
+			}
+			File temp = new File(this.file.getPath() + ".compact");
+			Writer out = new BufferedWriter(new OutputStreamWriter(new FileOutputStream(temp), "UTF-8"), 65536);
+			long next = newGeneration();
+			try {
+				out.write("#" + next + "\n");
+				handler.write(out);
+			} finally {
+				out.close();
+			}
+			FileChannel compacted = new RandomAccessFile(temp, "rw").getChannel();
+			if (!temp.renameTo(this.file)) {
+				compacted.close();
+				temp.delete();
+				throw new IOException("Unable to replace " + this.file);
+			}
+			// closing the old file releases the lock
+			this.channel.close();
+			this.channel = compacted;
+			this.generation = next;
+			this.position = compacted.size();
+			this.lines = 0;
+		} finally {
+			if (lock.isValid()) {
+				lock.release();
+			}
+		}
+	}
+
+	// A new journal next to this one, to be filled and then moved over it with replaceWith.
+	public Journal createRebuild() throws IOException {
+		File temp = new File(this.file.getPath() + ".tmp");
+		temp.delete();
+		Journal rebuilt = new Journal(temp);
+		rebuilt.open();
+		if (this.channel == null) {
+			this.open();
+		}
+		FileLock lock = this.lockCurrent();
+		try {
+			rebuilt.rebuildGeneration = this.generation;
+			rebuilt.rebuildFrom = this.channel.size();
+		} finally {
+			lock.release();
+		}
+		return rebuilt;
+	}
+
+	// Moves the file of a rebuilt journal over this one and closes both, open reads the new file. What was
+	// appended to this one since the rebuild started is copied to the end of the rebuilt file first; the
+	// last line wins, so replaying it there is safe. If the journal was compacted or replaced meanwhile all
+	// of its lines are copied.
+	public void replaceWith(Journal rebuilt) throws IOException {
+		rebuilt.close();
+		if (this.channel == null) {
+			this.open();
+		}
+		// appends of other processes check the generation under this lock
+		FileLock lock = this.lockCurrent();
+		try {
+			long from = this.generation == rebuilt.rebuildGeneration ? rebuilt.rebuildFrom : headerLength(this.channel);
+			FileChannel out = new FileOutputStream(rebuilt.file, true).getChannel();
+			try {
+				long end = this.channel.size();
+				while (from < end) {
+					from += this.channel.transferTo(from, end - from, out);
+				}
+			} finally {
+				out.close();
+			}
+			if (!rebuilt.file.renameTo(this.file)) {
+				throw new IOException("Unable to replace " + this.file);
+			}
+		} finally {
+			if (lock.isValid()) {
+				lock.release();
+			}
+		}
+		this.close();
+	}
+
+	public void close() throws IOException {
+		if (this.channel != null) {
+			this.channel.close();
+			this.channel = null;
+		}
+	}
+
+	// blanks what would break the line format
+	public static String clean(String value) {
+		return value.replace('\t', ' ').replace('\n', ' ').replace('\r', ' ');
+	}
+
+	private static long newGeneration() {
+		synchronized (random) {
+			long generation;
+			do {
+				generation = random.nextLong();
+			} while (generation == 0);
+			return generation;
+		}
+	}
+
+	// Switches to the file that replaced ours, the next read starts from its beginning.
+	private void reopen() throws IOException {
+		this.open();
+		this.replaced = true;
+	}
+
+	// Locks the file the journal currently is, switching to it first if it was replaced.
+	private FileLock lockCurrent() throws IOException {
+		FileLock lock = this.channel.lock();
+		if (this.readCurrentGeneration() != this.generation) {
+			lock.release();
+			this.reopen();
+			lock = this.channel.lock();
+		}
+		return lock;
+	}
+
+	private long readCurrentGeneration() throws IOException {
+		FileInputStream fis = new FileInputStream(this.file);
+		try {
+			return readGeneration(fis.getChannel());
+		} finally {
+			fis.close();
+		}
+	}
+
+	// The number of the "#<generation>" first line, 0 for a journal without one.
+	private static long readGeneration(FileChannel channel) throws IOException {
+		String start = readStart(channel);
+		int end = start.indexOf('\n');
+		if (!start.startsWith("#") || end < 0) {
+			return 0;
+		}
+		try {
+			return Long.parseLong(start.substring(1, end));
+		} catch (NumberFormatException nfe) {
+			return 0;
+		}
+	}
+
+	// Bytes of the "#<generation>" first line, 0 for a journal without one.
+	private static long headerLength(FileChannel channel) throws IOException {
+		String start = readStart(channel);
+		int end = start.indexOf('\n');
+		if (!start.startsWith("#") || end < 0) {
+			return 0;
+		}
+		return start.substring(0, end + 1).getBytes("UTF-8").length;
+	}
+
+	private static String readStart(FileChannel channel) throws IOException {
+		ByteBuffer buffer = ByteBuffer.allocate(24);
+		while (buffer.hasRemaining() && channel.read(buffer, buffer.position()) > 0) {
+			// a short read, try for the rest
+		}
+		return new String(buffer.array(), 0, buffer.position(), "UTF-8");
+	}
+
+}
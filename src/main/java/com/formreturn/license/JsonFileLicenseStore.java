@@ -0,0 +1,378 @@
+package com.formreturn.license;
+
+import com.google.gson.Gson;
+import org.apache.commons.io.FileUtils;
+import org.apache.commons.lang3.time.DateFormatUtils;
+
+import java.io.File;
+import java.io.FileNotFoundException;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.nio.channels.OverlappingFileLockException;
+import java.nio.file.DirectoryStream;
+import java.nio.file.FileAlreadyExistsException;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.UUID;
+
+// The original layout: one Gson serialised map per activation code in <directory>/<code>.json.
+// A record is written to a temp file next to it and renamed over it, so a crash leaves the old or the
+// new record but never a torn one. Unless syncing is off the temp file is synced before the rename and
+// the directory after it. In group mode a batch writes all its temp files before it syncs any, and the
+// syncs of the temp files and of the directories both go through a GroupCommit leader, so concurrent saves
+// and the records of a batch share one sync pass instead of paying a write-then-sync round trip each.
+// While a snapshot is open (see openSnapshot) every save first hard links the record it replaces into
+// <directory>/.snapshot, which keeps the old version alive because the rename never touches its file.
+// The process that opened the snapshot holds a lock on .snapshot/.lock until it closes it, so a .snapshot
+// left behind by a process that died is recognised by its unlocked marker and removed by the next save or
+// snapshot, rather than having every save link into it for good.
+public class JsonFileLicenseStore implements SnapshotLicenseStore {
+
+	private static final String SNAPSHOT_MARKER = ".lock";
+
+	// Snapshot directories this process has open. It must not open their markers itself: closing any channel
+	// on a file drops all of the process's locks on it. Also serialises the checks for stale snapshots.
+	private static final Set<String> openSnapshots = new HashSet<String>();
+
+	protected final File directory;
+
+	private final File snapshotDirectory;
+
+	protected final String syncMode = LicenseStores.getSyncMode();
+
+	private final GroupCommit<File> fileSync = new GroupCommit<File>(new GroupCommit.Syncer<File>() {
+		public void sync(List<File> batch) throws IOException {
+			for (File file: batch) {
+				syncFile(file);
+			}
+		}
+	});
+
+	private final GroupCommit<File> directorySync = new GroupCommit<File>(new GroupCommit.Syncer<File>() {
+		public void sync(List<File> batch) throws IOException {
+			for (File directory: new LinkedHashSet<File>(batch)) {
+				syncDirectory(directory);
+			}
+		}
+	});
+
+	public JsonFileLicenseStore(File directory) {
+		this.directory = directory;
+		this.directory.mkdirs();
+		this.snapshotDirectory = new File(directory, ".snapshot");
+	}
+
+	public License get(String activationCode) throws Exception {
+		return this.read(this.getFile(activationCode));
+	}
+
+	public boolean exists(String activationCode) throws Exception {
+		return this.getFile(activationCode).exists();
+	}
+
+	public void put(License license) throws Exception {
+		File file = this.getFile(license.activationCode);
+		if (this.isSnapshotOpen()) {
+			this.preserve(license.activationCode);
+		}
+		File temp = this.prepare(file, license);
+		try {
+			this.syncFiles(Collections.singletonList(temp));
+			this.install(temp, file, license);
+		} finally {
+			temp.delete();
+		}
+		this.syncDirectories(Collections.singletonList(file.getParentFile()));
+	}
+
+	public void putAll(Collection<License> licenses) throws Exception {
+		Set<File> directories = new LinkedHashSet<File>();
+		boolean snapshot = this.isSnapshotOpen();
+		List<File> temps = new ArrayList<File>(licenses.size());
+		try {
+			for (License license: licenses) {
+				temps.add(this.prepare(this.getFile(license.activationCode), license));
+			}
+			this.syncFiles(temps);
+			int i = 0;
+			for (License license: licenses) {
+				File file = this.getFile(license.activationCode);
+				if (snapshot) {
+					this.preserve(license.activationCode);
+				}
+				this.install(temps.get(i++), file, license);
+				directories.add(file.getParentFile());
+			}
+		} finally {
+			for (File temp: temps) {
+				temp.delete();
+			}
+		}
+		this.syncDirectories(directories);
+	}
+
+	public void scan(Visitor visitor) throws Exception {
+		DirectoryStream<Path> stream = Files.newDirectoryStream(this.directory.toPath(), "*.json");
+		try {
+			for (Path path: stream) {
+				String name = path.getFileName().toString();
+				if (!visitor.visit(name.substring(0, name.length() - ".json".length()))) {
+					return;
+				}
+			}
+		} finally {
+			stream.close();
+		}
+	}
+
+	public void close() throws Exception {
+	}
+
+	// Only one snapshot can be open at a time, across all processes using the directory. Saves that had
+	// already checked for a snapshot when it was opened may still land in it, as if they came before it.
+	public LicenseSnapshot openSnapshot() throws Exception {
+		if (this.isSnapshotOpen()) {
+			throw new Exception("A snapshot of " + this.directory + " is already open");
+		}
+		// set up aside and moved into place with its marker locked, so no one ever sees it unlocked
+		File staging = Files.createTempDirectory(this.directory.toPath(), ".snapshot").toFile();
+		final FileChannel marker = new RandomAccessFile(new File(staging, SNAPSHOT_MARKER), "rw").getChannel();
+		marker.lock();
+		synchronized (openSnapshots) {
+			// fails if another process's snapshot got there first, rename only replaces empty directories
+			if (!staging.renameTo(this.snapshotDirectory)) {
+				marker.close();
+				FileUtils.deleteDirectory(staging);
+				throw new Exception("A snapshot of " + this.directory + " is already open");
+			}
+			openSnapshots.add(this.snapshotDirectory.getAbsolutePath());
+		}
+		final String watermark = DateFormatUtils.ISO_8601_EXTENDED_DATETIME_TIME_ZONE_FORMAT.format(System.currentTimeMillis());
+		return new LicenseSnapshot() {
+			public String getWatermark() {
+				return watermark;
+			}
+
+			public void scan(Visitor visitor) throws Exception {
+				JsonFileLicenseStore.this.scan(visitor);
+			}
+
+			public License get(String activationCode) throws Exception {
+				File copy = getSnapshotFile(activationCode);
+				if (!copy.exists()) {
+					License license = JsonFileLicenseStore.this.get(activationCode);
+					// a save preserves before it replaces, so if it replaced what we read the copy exists now
+					if (!copy.exists()) {
+						return license;
+					}
+				}
+				return copy.length() == 0 ? null : read(copy);
+			}
+
+			public List<License> getAll(List<String> activationCodes) throws Exception {
+				List<License> licenses = new ArrayList<License>(activationCodes.size());
+				for (String activationCode: activationCodes) {
+					License license = this.get(activationCode);
+					if (license != null) {
+						licenses.add(license);
+					}
+				}
+				return licenses;
+			}
+
+			public void close() throws Exception {
+				File closed;
+				synchronized (openSnapshots) {
+					// moved aside before the lock goes, so no one takes it for stale meanwhile
+					closed = moveSnapshotAside();
+					openSnapshots.remove(snapshotDirectory.getAbsolutePath());
+					marker.close();
+				}
+				FileUtils.deleteDirectory(closed == null ? snapshotDirectory : closed);
+			}
+		};
+	}
+
+	protected File getFile(String activationCode) {
+		return new File(this.directory, activationCode + ".json");
+	}
+
+	// The file get reads the license from, null if it isn't stored.
+	protected File locate(String activationCode) {
+		File file = this.getFile(activationCode);
+		return file.exists() ? file : null;
+	}
+
+	protected License read(File licenseFile) throws Exception {
+		if (!licenseFile.exists()) {
+			return null;
+		}
+		License license = new License();
+		license.fromJson(FileUtils.readFileToString(licenseFile, "UTF-8"));
+		return license;
+	}
+
+	// Writes the record to a temp file next to its file, synced unless syncing is off or left to group mode.
+	// The temp file is hidden from scan by its name, .<code>.json<random>.tmp
+	protected File prepare(File file, License license) throws IOException {
+		byte[] json = new Gson().toJson(license.toMap(), Map.class).getBytes("UTF-8");
+		File temp = File.createTempFile("." + file.getName(), ".tmp", file.getParentFile());
+		try {
+			FileOutputStream out = new FileOutputStream(temp);
+			try {
+				out.write(json);
+				if (this.syncMode.equals(LicenseStores.SYNC_ALWAYS)) {
+					out.getFD().sync();
+				}
+			} finally {
+				out.close();
+			}
+		} catch (IOException ioe) {
+			temp.delete();
+			throw ioe;
+		}
+		return temp;
+	}
+
+	// Renames a prepared, synced temp file over the record.
+	protected void install(File temp, File file, License license) throws IOException {
+		Files.move(temp.toPath(), file.toPath(), StandardCopyOption.ATOMIC_MOVE);
+	}
+
+	// Keeps the record a save is about to replace for the open snapshot, unless an earlier save did. A code
+	// that isn't stored yet gets an empty file, as the snapshot mustn't see it.
+	private void preserve(String activationCode) throws IOException {
+		Path copy = this.getSnapshotFile(activationCode).toPath();
+		// a second try in case migration moved the file in between
+		for (int i = 0; i < 2; i++) {
+			File current = this.locate(activationCode);
+			try {
+				if (current == null) {
+					Files.createFile(copy);
+				} else {
+					try {
+						Files.createLink(copy, current.toPath());
+					} catch (UnsupportedOperationException uoe) {
+						Files.copy(current.toPath(), copy);
+					}
+				}
+				return;
+			} catch (FileAlreadyExistsException faee) {
+				return;
+			} catch (NoSuchFileException nsfe) {
+				if (!this.snapshotDirectory.exists()) {
+					// the snapshot was closed
+					return;
+				}
+			}
+		}
+	}
+
+	// Whether saves have to preserve for a snapshot. One whose marker nobody holds is removed first.
+	private boolean isSnapshotOpen() throws IOException {
+		if (!this.snapshotDirectory.exists()) {
+			return false;
+		}
+		File stale;
+		synchronized (openSnapshots) {
+			if (openSnapshots.contains(this.snapshotDirectory.getAbsolutePath())) {
+				return true;
+			}
+			FileChannel marker;
+			try {
+				// creates the marker in a .snapshot from before there were markers, which is stale as well
+				marker = new RandomAccessFile(new File(this.snapshotDirectory, SNAPSHOT_MARKER), "rw").getChannel();
+			} catch (FileNotFoundException fnfe) {
+				// closed meanwhile
+				return false;
+			}
+			try {
+				FileLock lock;
+				try {
+					lock = marker.tryLock();
+				} catch (OverlappingFileLockException ofle) {
+					return true;
+				}
+				if (lock == null) {
+					return true;
+				}
+				// moved aside under the lock, so a snapshot opened meanwhile can't be mistaken for it
+				stale = this.moveSnapshotAside();
+			} finally {
+				marker.close();
+			}
+		}
+		if (stale != null) {
+			System.err.println("Removing stale snapshot " + this.snapshotDirectory);
+			FileUtils.deleteDirectory(stale);
+		}
+		return false;
+	}
+
+	// Renames .snapshot to a unique name for deleting, null if it's gone already.
+	private File moveSnapshotAside() {
+		File aside = new File(this.directory, ".snapshot-" + UUID.randomUUID() + ".old");
+		return this.snapshotDirectory.renameTo(aside) ? aside : null;
+	}
+
+	private File getSnapshotFile(String activationCode) {
+		return new File(this.snapshotDirectory, activationCode + ".json");
+	}
+
+	// makes prepared temp files durable before they are renamed, in always mode prepare synced them already
+	private void syncFiles(Collection<File> temps) throws IOException {
+		if (this.syncMode.equals(LicenseStores.SYNC_GROUP)) {
+			this.fileSync.commitAll(temps);
+		}
+	}
+
+	private static void syncFile(File file) throws IOException {
+		FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.WRITE);
+		try {
+			channel.force(true);
+		} finally {
+			channel.close();
+		}
+	}
+
+	// makes the renames into these directories durable
+	protected void syncDirectories(Collection<File> directories) throws IOException {
+		if (this.syncMode.equals(LicenseStores.SYNC_GROUP)) {
+			this.directorySync.commitAll(directories);
+		} else if (this.syncMode.equals(LicenseStores.SYNC_ALWAYS)) {
+			for (File directory: directories) {
+				syncDirectory(directory);
+			}
+		}
+	}
+
+	private static void syncDirectory(File directory) throws IOException {
+		FileChannel channel;
+		try {
+			channel = FileChannel.open(directory.toPath(), StandardOpenOption.READ);
+		} catch (IOException ioe) {
+			// directories can't be opened on every platform, there the rename is as durable as it gets
+			return;
+		}
+		try {
+			channel.force(true);
+		} finally {
+			channel.close();
+		}
+	}
+
+}
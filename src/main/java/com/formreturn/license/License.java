@@ -1,15 +1,18 @@
 package com.formreturn.license;
 
 import com.google.gson.Gson;
-import org.apache.commons.io.FileUtils;
+import org.apache.commons.lang3.StringUtils;
 import org.apache.commons.lang3.time.DateFormatUtils;
 
-import java.io.File;
 import java.text.ParseException;
 import java.text.SimpleDateFormat;
+import java.util.ArrayList;
 import java.util.Date;
 import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
 import java.util.Map;
+import java.util.Set;
 
 public class License {
 
@@ -29,6 +32,9 @@ public class License {
 	// current license is a site license based on user license codes (comma separated)...
 	public String siteLicense;
 
+	// saves of the stored record, 0 if it was never saved; save fails if the record was saved since it was loaded
+	public long version;
+
 	public LicenseField[] defaults;
 
 	public LicenseField firstNameDefaults = new LicenseField(
@@ -192,14 +198,30 @@ public class License {
 	}
 
 	public String upgradeActivationCode(License license) throws Exception {
-		this.upgradedFrom = license.activationCode;
-		this.licenseType = license.licenseType;
-		this.cert = license.cert;
-		this.quantity = license.quantity;
-		this.generateActivationCode();
-		license.replacedBy = this.activationCode;
-		license.save();
-		return this.activationCode;
+		return this.upgradeActivationCode(license, Misc.generateActivationCode());
+	}
+
+	// Upgrades the license to the given new code, under the locks of both codes.
+	public String upgradeActivationCode(License license, String activationCode) throws Exception {
+		LicenseLocks.Held held = LicenseLocks.getDefault().lock(license.activationCode, activationCode);
+		try {
+			if (license.replacedBy != null) {
+				throw new Exception("Activation code " + license.activationCode + " has already been upgraded to " + license.replacedBy);
+			}
+			// fail before the new code is saved if the license changed since it was loaded
+			license.checkVersion();
+			this.upgradedFrom = license.activationCode;
+			this.licenseType = license.licenseType;
+			this.cert = license.cert;
+			this.quantity = license.quantity;
+			this.activationCode = activationCode;
+			this.save();
+			license.replacedBy = this.activationCode;
+			license.save();
+			return this.activationCode;
+		} finally {
+			held.release();
+		}
 	}
 
 	public String generateActivationCode() throws Exception {
@@ -209,25 +231,174 @@ public class License {
 	}
 
 	public String generateSiteActivationCode(String codes) throws Exception {
-		this.siteLicense = codes;
-		this.activationCode = Misc.generateActivationCode();
-		this.licenseType = "Site";
-		this.save();
-		return this.activationCode;
+		List<String> members = SiteLicenseIndex.split(codes);
+		if (members.isEmpty()) {
+			throw new Exception("No activation codes given");
+		}
+		String activationCode = Misc.generateActivationCode();
+		// the members are locked so two site licenses can't claim the same code at once
+		List<String> locked = new ArrayList<String>(members);
+		locked.add(activationCode);
+		LicenseLocks.Held held = LicenseLocks.getDefault().lock(locked.toArray(new String[locked.size()]));
+		try {
+			LicenseStore store = LicenseStores.getDefault();
+			SecondaryIndexStore indexes = LicenseStores.find(SecondaryIndexStore.class);
+			Set<String> seen = new HashSet<String>();
+			for (String member: members) {
+				this.validateActivationCode(member);
+				if (!seen.add(member)) {
+					throw new Exception("Activation code " + member + " given twice");
+				}
+				if (!store.exists(member)) {
+					throw new Exception("Activation code " + member + " not found");
+				}
+				String site = indexes == null ? null : indexes.getSite(member);
+				if (site != null) {
+					throw new Exception("Activation code " + member + " already belongs to site license " + site);
+				}
+			}
+			this.siteLicense = StringUtils.join(members, ",");
+			this.activationCode = activationCode;
+			this.licenseType = "Site";
+			this.save();
+			return this.activationCode;
+		} finally {
+			held.release();
+		}
 	}
 
 	public void load(String activationCode) throws Exception {
+		this.load(activationCode, LicenseStores.getDefault());
+	}
+
+	// Loads the license as stored, past the cache, which may still hold what another process has since
+	// replaced. For mutations under the lock of the code.
+	public void loadLatest(String activationCode) throws Exception {
+		this.load(activationCode, LicenseStores.getUncached());
+	}
+
+	private void load(String activationCode, LicenseStore store) throws Exception {
 		this.validateActivationCode(activationCode);
-		File licenseFile = new File(Misc.getPath("licenses") + File.separator + activationCode + ".json");
-		if (!licenseFile.exists()) {
+		License stored = store.get(activationCode);
+		if (stored == null) {
 			throw new Exception("Activation code not found");
 		}
-		String json = FileUtils.readFileToString(licenseFile, "UTF-8");
-		this.fromJson(json);
+		this.copyFrom(stored);
 	}
 
-	@SuppressWarnings("all")
+	// Saves the license under the lock of its code, provided the stored record is still the one it was loaded
+	// from (or there is none), and counts up its version.
 	public void save() throws Exception {
+		LicenseLocks.Held held = LicenseLocks.getDefault().lock(this.activationCode);
+		try {
+			this.checkVersion();
+			this.version++;
+			try {
+				LicenseStores.getDefault().put(this);
+			} catch (Exception ex) {
+				this.version--;
+				throw ex;
+			}
+		} finally {
+			held.release();
+		}
+	}
+
+	// Fails if the stored record was saved since this license was loaded. Callers hold the lock of the code.
+	void checkVersion() throws Exception {
+		License stored = LicenseStores.getUncached().get(this.activationCode);
+		if ((stored == null ? 0 : stored.version) != this.version) {
+			// what was loaded may have come from a cached copy that is out of date
+			CachingLicenseStore cache = LicenseStores.find(CachingLicenseStore.class);
+			if (cache != null) {
+				cache.invalidate(this.activationCode);
+			}
+			throw new Exception("Activation code " + this.activationCode + " was changed concurrently, load it again");
+		}
+	}
+
+	// Persists a batch of licenses, used by bulk operations such as the import pipeline. Bulk saves take no
+	// locks and don't check versions, they overwrite whatever is stored, but each is saved one version past
+	// the stored record so a license loaded before the overwrite can't be saved over it.
+	public static void saveAll(List<License> licenses) throws Exception {
+		LicenseStore stored = LicenseStores.getUncached();
+		long[] versions = new long[licenses.size()];
+		for (int i = 0; i < versions.length; i++) {
+			License license = licenses.get(i);
+			License current = stored.get(license.activationCode);
+			versions[i] = license.version;
+			license.version = (current == null ? 0 : current.version) + 1;
+		}
+		try {
+			LicenseStores.getDefault().putAll(licenses);
+		} catch (Exception ex) {
+			for (int i = 0; i < versions.length; i++) {
+				licenses.get(i).version = versions[i];
+			}
+			throw ex;
+		}
+	}
+
+	// Takes over the values of a stored license the same way fromMap takes over a stored map:
+	// fields the store has no value for keep their current value.
+	void copyFrom(License stored) {
+		this.activationCode = stored.activationCode;
+		this.cert = stored.cert;
+		this.licenseType = stored.licenseType;
+		this.quantity = stored.quantity;
+		this.version = stored.version;
+		// dates are mutable, the copy gets its own
+		this.issued = stored.issued == null ? null : new Date(stored.issued.getTime());
+		if (stored.replacedBy != null) {
+			this.replacedBy = stored.replacedBy;
+		}
+		if (stored.upgradedFrom != null) {
+			this.upgradedFrom = stored.upgradedFrom;
+		}
+		if (stored.siteLicense != null) {
+			this.siteLicense = stored.siteLicense;
+		}
+		if (stored.firstName != null) {
+			this.firstName = stored.firstName;
+		}
+		if (stored.lastName != null) {
+			this.lastName = stored.lastName;
+		}
+		if (stored.canonicalName != null) {
+			this.canonicalName = stored.canonicalName;
+		}
+		if (stored.organization != null) {
+			this.organization = stored.organization;
+		}
+		if (stored.street != null) {
+			this.street = stored.street;
+		}
+		if (stored.city != null) {
+			this.city = stored.city;
+		}
+		if (stored.state != null) {
+			this.state = stored.state;
+		}
+		if (stored.country != null) {
+			this.country = stored.country;
+		}
+		if (stored.purchaseId != null) {
+			this.purchaseId = stored.purchaseId;
+		}
+		if (stored.email != null) {
+			this.email = stored.email;
+		}
+		if (stored.expire != null) {
+			this.expire = new Date(stored.expire.getTime());
+		}
+		if (stored.key != null) {
+			this.key = stored.key;
+		}
+	}
+
+	// Stored form of the license, the inverse of fromMap.
+	@SuppressWarnings("all")
+	public HashMap<String, String> toMap() {
 
 		HashMap<String, String> map = new HashMap<String, String>();
 
@@ -236,6 +407,9 @@ public class License {
 		map.put("licenseType", this.licenseType);
 		map.put("cert", this.cert + "");
 		map.put("quantity", this.quantity + "");
+		if (this.version > 0) {
+			map.put("version", this.version + "");
+		}
 
 		// UPGRADE SETTINGS
 		if (this.replacedBy != null) {
@@ -303,11 +477,7 @@ public class License {
 			map.put("key", this.key);
 		}
 
-		Gson gson = new Gson();
-		String json = gson.toJson(map, Map.class);
-
-		File licenseFile = new File(Misc.getPath("licenses") + File.separator + this.activationCode + ".json");
-		FileUtils.writeStringToFile(licenseFile, json, "UTF-8");
+		return map;
 	}
 
 	public Date getDate(String dateStr) throws ParseException {
@@ -408,6 +578,10 @@ public class License {
 			this.key = (String) map.get("key");
 		}
 
+		if (map.containsKey("version")) {
+			this.version = Long.parseLong((String) map.get("version"));
+		}
+
 	}
 
 	public void fromJson(String json) throws Exception {
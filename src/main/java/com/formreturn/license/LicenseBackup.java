@@ -0,0 +1,478 @@
+package com.formreturn.license;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.zip.CRC32;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+// Streams a snapshot of the license store (see SnapshotLicenseStore) into a single archive and restores it.
+// The archive is
+//   int magic | int version | UTF watermark | long created
+//   block*    int compressed length | int records | int length | int crc32 | deflated records
+//   int 0
+//   manifest  int blocks | (int records | int length | int crc32) per block | long records | int crc32
+// where a block holds up to BLOCK_RECORDS records, each an int length followed by its LicenseCodec form,
+// and the last crc32 covers the manifest. A walker scans the snapshot, workers load, encode and compress
+// blocks in parallel and a single writer appends them in whatever order they finish. A record that can't be
+// read fails the snapshot, the archive then has no manifest and restore rejects it. Restore reads the
+// blocks in turn while workers check, decompress and save them through the default store, so the indexes
+// are built as the records arrive. A damaged archive fails the restore part way, which is why it only
+// restores into an empty store.
+public class LicenseBackup {
+
+	private static final int MAGIC = 0x46524C42;
+
+	private static final int VERSION = 1;
+
+	private static final int BLOCK_RECORDS = 1000;
+
+	// compared by identity, mark the end of a queue
+	private static final List<String> END_CODES = new ArrayList<String>(0);
+
+	private static final Block END = new Block();
+
+	private final BackupOptions options;
+
+	private final AtomicLong records = new AtomicLong();
+
+	private final AtomicLong failed = new AtomicLong();
+
+	private String watermark;
+
+	public LicenseBackup(BackupOptions options) {
+		this.options = options;
+	}
+
+	// Writes a snapshot of the store to output, returns the number of records in it.
+	public long snapshot(OutputStream output) throws Exception {
+		SnapshotLicenseStore store = LicenseStores.find(SnapshotLicenseStore.class);
+		if (store == null) {
+			throw new Exception("The license store doesn't support snapshots");
+		}
+		LicenseSnapshot snapshot = store.openSnapshot();
+		try {
+			return this.write(snapshot, output);
+		} finally {
+			snapshot.close();
+		}
+	}
+
+	// Saves the records of a snapshot into the store, which has to be empty, returns the number saved.
+	public long restore(InputStream input) throws Exception {
+		final LicenseStore store = LicenseStores.getDefault();
+		final boolean[] empty = new boolean[] {true};
+		store.scan(new LicenseStore.Visitor() {
+			public boolean visit(String activationCode) {
+				empty[0] = false;
+				return false;
+			}
+		});
+		if (!empty[0]) {
+			throw new Exception("Restoring needs an empty license store, " + LicenseStores.getDirectory() + " has licenses");
+		}
+		// the hashes of the last imports don't describe the restored records
+		ContentIndex.getDefault().delete();
+
+		DataInputStream in = new DataInputStream(new BufferedInputStream(input, 1 << 20));
+		try {
+			if (in.readInt() != MAGIC) {
+				throw new Exception("Not a license snapshot");
+			}
+			int version = in.readInt();
+			if (version != VERSION) {
+				throw new Exception("Unsupported license snapshot version " + version);
+			}
+			this.watermark = in.readUTF();
+			in.readLong();
+		} catch (EOFException eof) {
+			throw new Exception("Not a license snapshot");
+		}
+
+		final BlockingQueue<Block> blocks = new ArrayBlockingQueue<Block>(this.options.workers * 2);
+		final Exception[] failure = new Exception[1];
+		ExecutorService executor = Executors.newFixedThreadPool(this.options.workers);
+		this.records.set(0);
+
+		// WORKERS
+		for (int i = 0; i < this.options.workers; i++) {
+			executor.execute(new Runnable() {
+				public void run() {
+					Inflater inflater = new Inflater();
+					try {
+						Block block;
+						while ((block = blocks.take()) != END) {
+							// after a failure the remaining blocks are only drained
+							if (failure[0] == null) {
+								try {
+									List<License> licenses = decode(block, inflater);
+									store.putAll(licenses);
+									records.addAndGet(licenses.size());
+								} catch (Exception ex) {
+									failure[0] = ex;
+								}
+							}
+						}
+						blocks.put(END);
+					} catch (InterruptedException iex) {
+						// restore aborted
+					} finally {
+						inflater.end();
+					}
+				}
+			});
+		}
+		executor.shutdown();
+
+		// READER (runs on the calling thread)
+		try {
+			List<Block> read = new ArrayList<Block>();
+			try {
+				int size;
+				while (failure[0] == null && (size = in.readInt()) != 0) {
+					if (size < 0) {
+						throw new IOException("The license snapshot is damaged after block " + read.size());
+					}
+					Block block = new Block();
+					block.records = in.readInt();
+					block.length = in.readInt();
+					block.crc = in.readInt();
+					block.data = new byte[size];
+					in.readFully(block.data);
+					blocks.put(block);
+					read.add(block.describe());
+				}
+				if (failure[0] == null) {
+					checkManifest(in, read);
+				}
+			} catch (EOFException eof) {
+				throw new IOException("The license snapshot is truncated after block " + read.size());
+			}
+		} finally {
+			blocks.put(END);
+			executor.awaitTermination(Long.MAX_VALUE, TimeUnit.SECONDS);
+		}
+		if (failure[0] != null) {
+			throw failure[0];
+		}
+		return this.records.get();
+	}
+
+	public long getRecords() {
+		return this.records.get();
+	}
+
+	// records that couldn't be read from the store and are missing from the snapshot
+	public long getFailed() {
+		return this.failed.get();
+	}
+
+	public String getWatermark() {
+		return this.watermark;
+	}
+
+	private long write(final LicenseSnapshot snapshot, OutputStream output) throws Exception {
+		final BlockingQueue<List<String>> batches = new ArrayBlockingQueue<List<String>>(this.options.workers * 2);
+		final BlockingQueue<Block> blocks = new ArrayBlockingQueue<Block>(this.options.workers * 2);
+		final AtomicInteger running = new AtomicInteger(this.options.workers);
+		final Exception[] failure = new Exception[1];
+		ExecutorService executor = Executors.newFixedThreadPool(this.options.workers + 1);
+
+		this.watermark = snapshot.getWatermark();
+		this.records.set(0);
+		this.failed.set(0);
+
+		// WALKER
+		executor.execute(new Runnable() {
+			public void run() {
+				try {
+					Batcher batcher = new Batcher(batches);
+					snapshot.scan(batcher);
+					batcher.flush();
+				} catch (InterruptedException iex) {
+					return;
+				} catch (Exception ex) {
+					failure[0] = ex;
+				}
+				try {
+					batches.put(END_CODES);
+				} catch (InterruptedException iex) {
+					// backup aborted
+				}
+			}
+		});
+
+		// WORKERS
+		for (int i = 0; i < this.options.workers; i++) {
+			executor.execute(new Runnable() {
+				public void run() {
+					Deflater deflater = new Deflater(options.level);
+					try {
+						try {
+							List<String> batch;
+							while ((batch = batches.take()) != END_CODES) {
+								blocks.put(encode(snapshot, batch, deflater));
+							}
+						} catch (InterruptedException iex) {
+							throw iex;
+						} catch (Exception ex) {
+							failure[0] = ex;
+						}
+						batches.put(END_CODES);
+						if (running.decrementAndGet() == 0) {
+							blocks.put(END);
+						}
+					} catch (InterruptedException iex) {
+						// backup aborted
+					} finally {
+						deflater.end();
+					}
+				}
+			});
+		}
+		executor.shutdown();
+
+		// WRITER (runs on the calling thread)
+		DataOutputStream out = new DataOutputStream(new BufferedOutputStream(output, 1 << 20));
+		try {
+			out.writeInt(MAGIC);
+			out.writeInt(VERSION);
+			out.writeUTF(this.watermark);
+			out.writeLong(System.currentTimeMillis());
+			List<Block> written = new ArrayList<Block>();
+			Block block;
+			while ((block = blocks.take()) != END) {
+				if (block.records == 0) {
+					continue;
+				}
+				out.writeInt(block.data.length);
+				out.writeInt(block.records);
+				out.writeInt(block.length);
+				out.writeInt(block.crc);
+				out.write(block.data);
+				written.add(block.describe());
+				this.records.addAndGet(block.records);
+			}
+			// an incomplete archive must not get a manifest
+			if (failure[0] != null) {
+				throw failure[0];
+			}
+			if (this.failed.get() > 0) {
+				throw new Exception("Unable to read " + this.failed.get() + " licenses, the snapshot would leave them out");
+			}
+			out.writeInt(0);
+			writeManifest(out, written);
+			out.flush();
+		} finally {
+			executor.shutdownNow();
+			executor.awaitTermination(1, TimeUnit.MINUTES);
+		}
+		return this.records.get();
+	}
+
+	private Block encode(LicenseSnapshot snapshot, List<String> batch, Deflater deflater) throws IOException {
+		ByteArrayOutputStream raw = new ByteArrayOutputStream(batch.size() * 256);
+		DataOutputStream out = new DataOutputStream(raw);
+		Block block = new Block();
+		// codes saved after the snapshot was taken are left out
+		List<License> licenses;
+		try {
+			licenses = snapshot.getAll(batch);
+		} catch (Exception batchEx) {
+			// one at a time, so every record that fails is reported before the snapshot is failed
+			licenses = new ArrayList<License>(batch.size());
+			for (String activationCode: batch) {
+				try {
+					License license = snapshot.get(activationCode);
+					if (license != null) {
+						licenses.add(license);
+					}
+				} catch (Exception ex) {
+					this.failed.incrementAndGet();
+					System.err.println("Skipping " + activationCode + ": " + ex.getMessage());
+				}
+			}
+		}
+		for (License license: licenses) {
+			byte[] record = LicenseCodec.encode(license);
+			out.writeInt(record.length);
+			out.write(record);
+			block.records++;
+		}
+		byte[] data = raw.toByteArray();
+		CRC32 crc = new CRC32();
+		crc.update(data);
+		block.length = data.length;
+		block.crc = (int) crc.getValue();
+
+		deflater.reset();
+		deflater.setInput(data);
+		deflater.finish();
+		ByteArrayOutputStream compressed = new ByteArrayOutputStream(data.length / 4 + 64);
+		byte[] buffer = new byte[65536];
+		while (!deflater.finished()) {
+			compressed.write(buffer, 0, deflater.deflate(buffer));
+		}
+		block.data = compressed.toByteArray();
+		return block;
+	}
+
+	private static List<License> decode(Block block, Inflater inflater) throws Exception {
+		byte[] data = new byte[block.length];
+		inflater.reset();
+		inflater.setInput(block.data);
+		int length = 0;
+		while (length < data.length && !inflater.finished()) {
+			int inflated = inflater.inflate(data, length, data.length - length);
+			if (inflated == 0 && inflater.needsInput()) {
+				break;
+			}
+			length += inflated;
+		}
+		CRC32 crc = new CRC32();
+		crc.update(data, 0, length);
+		if (length != block.length || (int) crc.getValue() != block.crc) {
+			throw new IOException("A license snapshot block fails its checksum");
+		}
+		List<License> licenses = new ArrayList<License>(block.records);
+		ByteBuffer in = ByteBuffer.wrap(data);
+		while (in.hasRemaining()) {
+			int size = in.getInt();
+			licenses.add(LicenseCodec.decode(data, in.position(), size));
+			in.position(in.position() + size);
+		}
+		if (licenses.size() != block.records) {
+			throw new IOException("A license snapshot block holds " + licenses.size() + " records instead of " + block.records);
+		}
+		return licenses;
+	}
+
+	private static void writeManifest(DataOutputStream out, List<Block> blocks) throws IOException {
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream(16 + blocks.size() * 12);
+		DataOutputStream manifest = new DataOutputStream(bytes);
+		long records = 0;
+		manifest.writeInt(blocks.size());
+		for (Block block: blocks) {
+			manifest.writeInt(block.records);
+			manifest.writeInt(block.length);
+			manifest.writeInt(block.crc);
+			records += block.records;
+		}
+		manifest.writeLong(records);
+		CRC32 crc = new CRC32();
+		crc.update(bytes.toByteArray());
+		out.write(bytes.toByteArray());
+		out.writeInt((int) crc.getValue());
+	}
+
+	// The blocks read have to be the ones the manifest lists, in the same order.
+	private static void checkManifest(DataInputStream in, List<Block> read) throws IOException {
+		CRC32 crc = new CRC32();
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream(16 + read.size() * 12);
+		DataOutputStream manifest = new DataOutputStream(bytes);
+		int count = in.readInt();
+		manifest.writeInt(count);
+		boolean matches = count == read.size();
+		long records = 0;
+		for (int i = 0; i < count; i++) {
+			Block block = new Block();
+			block.records = in.readInt();
+			block.length = in.readInt();
+			block.crc = in.readInt();
+			manifest.writeInt(block.records);
+			manifest.writeInt(block.length);
+			manifest.writeInt(block.crc);
+			matches &= i < read.size() && block.equals(read.get(i));
+			records += block.records;
+		}
+		long total = in.readLong();
+		manifest.writeLong(total);
+		crc.update(bytes.toByteArray());
+		if (in.readInt() != (int) crc.getValue()) {
+			throw new IOException("The license snapshot manifest fails its checksum");
+		}
+		if (!matches || total != records) {
+			throw new IOException("The license snapshot doesn't hold the blocks its manifest lists");
+		}
+	}
+
+	// Hands the codes of a scan to the workers in batches of BLOCK_RECORDS.
+	private static class Batcher implements LicenseStore.Visitor {
+
+		private final BlockingQueue<List<String>> batches;
+
+		private List<String> batch = new ArrayList<String>(BLOCK_RECORDS);
+
+		private Batcher(BlockingQueue<List<String>> batches) {
+			this.batches = batches;
+		}
+
+		public boolean visit(String activationCode) throws Exception {
+			this.batch.add(activationCode);
+			if (this.batch.size() == BLOCK_RECORDS) {
+				this.flush();
+			}
+			return true;
+		}
+
+		private void flush() throws InterruptedException {
+			if (!this.batch.isEmpty()) {
+				this.batches.put(this.batch);
+				this.batch = new ArrayList<String>(BLOCK_RECORDS);
+			}
+		}
+
+	}
+
+	private static class Block {
+
+		private int records;
+
+		// uncompressed
+		private int length;
+
+		private int crc;
+
+		private byte[] data;
+
+		// the block without its data, for the manifest
+		private Block describe() {
+			Block description = new Block();
+			description.records = this.records;
+			description.length = this.length;
+			description.crc = this.crc;
+			return description;
+		}
+
+		public boolean equals(Object other) {
+			if (!(other instanceof Block)) {
+				return false;
+			}
+			Block block = (Block) other;
+			return block.records == this.records && block.length == this.length && block.crc == this.crc;
+		}
+
+		public int hashCode() {
+			return this.crc;
+		}
+
+	}
+
+}
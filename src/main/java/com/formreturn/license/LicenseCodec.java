@@ -0,0 +1,273 @@
+package com.formreturn.license;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.time.Instant;
+import java.time.LocalDate;
+import java.time.ZoneId;
+import java.util.Base64;
+import java.util.Date;
+
+// Binary form of a License for store backends, the counterpart of toMap and fromJson without the map, the
+// number and date formatting and the reflection. A record is
+//   byte version | short presence bits | activationCode | int cert | int quantity | long version | present fields
+// in the order of the presence bits below, strings being a varint byte length followed by UTF-8, dates the
+// day since 1970-01-01 in the local time zone (what yyyy-MM-dd keeps of them) and the key its signed bytes
+// rather than Base64. Decoding applies the same defaults as fromMap, so a license reads back the same
+// whichever form it was stored in. Version 1 records, written before licenses had a version, read as version 0.
+public final class LicenseCodec {
+
+	public static final byte VERSION = 2;
+
+	private static final int LICENSE_TYPE = 1;
+	private static final int REPLACED_BY = 1 << 1;
+	private static final int UPGRADED_FROM = 1 << 2;
+	private static final int SITE_LICENSE = 1 << 3;
+	private static final int FIRST_NAME = 1 << 4;
+	private static final int LAST_NAME = 1 << 5;
+	private static final int CANONICAL_NAME = 1 << 6;
+	private static final int ORGANIZATION = 1 << 7;
+	private static final int STREET = 1 << 8;
+	private static final int CITY = 1 << 9;
+	private static final int STATE = 1 << 10;
+	private static final int COUNTRY = 1 << 11;
+	private static final int PURCHASE_ID = 1 << 12;
+	private static final int EMAIL = 1 << 13;
+	private static final int DATES = 1 << 14;
+	private static final int KEY = 1 << 15;
+
+	// date flags, after the presence bits when DATES is set
+	private static final int ISSUED = 1;
+	private static final int EXPIRE = 2;
+
+	// key kinds
+	private static final byte KEY_RAW = 0;
+	private static final byte KEY_TEXT = 1;
+
+	private LicenseCodec() {
+	}
+
+	public static byte[] encode(License license) {
+		Output out = new Output();
+		int bits = bit(license.licenseType, LICENSE_TYPE)
+				| bit(license.replacedBy, REPLACED_BY)
+				| bit(license.upgradedFrom, UPGRADED_FROM)
+				| bit(license.siteLicense, SITE_LICENSE)
+				| bit(license.firstName, FIRST_NAME)
+				| bit(license.lastName, LAST_NAME)
+				| bit(license.canonicalName, CANONICAL_NAME)
+				| bit(license.organization, ORGANIZATION)
+				| bit(license.street, STREET)
+				| bit(license.city, CITY)
+				| bit(license.state, STATE)
+				| bit(license.country, COUNTRY)
+				| bit(license.purchaseId, PURCHASE_ID)
+				| bit(license.email, EMAIL)
+				| (license.issued != null || license.expire != null ? DATES : 0)
+				| bit(license.key, KEY);
+		out.write(VERSION);
+		out.write(bits >>> 8);
+		out.write(bits);
+		out.writeString(license.activationCode == null ? "" : license.activationCode);
+		out.writeInt(license.cert);
+		out.writeInt(license.quantity);
+		out.writeLong(license.version);
+		out.writeString(license.licenseType);
+		out.writeString(license.replacedBy);
+		out.writeString(license.upgradedFrom);
+		out.writeString(license.siteLicense);
+		out.writeString(license.firstName);
+		out.writeString(license.lastName);
+		out.writeString(license.canonicalName);
+		out.writeString(license.organization);
+		out.writeString(license.street);
+		out.writeString(license.city);
+		out.writeString(license.state);
+		out.writeString(license.country);
+		out.writeString(license.purchaseId);
+		out.writeString(license.email);
+		if ((bits & DATES) != 0) {
+			out.write((license.issued != null ? ISSUED : 0) | (license.expire != null ? EXPIRE : 0));
+			if (license.issued != null) {
+				out.writeInt((int) toEpochDay(license.issued));
+			}
+			if (license.expire != null) {
+				out.writeInt((int) toEpochDay(license.expire));
+			}
+		}
+		if (license.key != null) {
+			byte[] raw = decodeKey(license.key);
+			// only keys that encode back to the very same text can be kept as bytes
+			if (raw != null && Base64.getEncoder().encodeToString(raw).equals(license.key)) {
+				out.write(KEY_RAW);
+				out.writeBlob(raw);
+			} else {
+				out.write(KEY_TEXT);
+				out.writeString(license.key);
+			}
+		}
+		return out.toByteArray();
+	}
+
+	public static License decode(byte[] record) throws IOException {
+		return decode(record, 0, record.length);
+	}
+
+	public static License decode(byte[] record, int offset, int length) throws IOException {
+		ByteBuffer in = ByteBuffer.wrap(record, offset, length);
+		try {
+			byte version = readVersion(in);
+			int bits = in.getShort() & 0xFFFF;
+			License license = new License();
+			license.activationCode = readString(in);
+			license.cert = in.getInt();
+			license.quantity = in.getInt();
+			license.version = version > 1 ? in.getLong() : 0;
+			license.licenseType = (bits & LICENSE_TYPE) != 0 ? readString(in) : "User";
+			license.replacedBy = (bits & REPLACED_BY) != 0 ? readString(in) : null;
+			license.upgradedFrom = (bits & UPGRADED_FROM) != 0 ? readString(in) : null;
+			license.siteLicense = (bits & SITE_LICENSE) != 0 ? readString(in) : null;
+			license.firstName = (bits & FIRST_NAME) != 0 ? readString(in) : null;
+			license.lastName = (bits & LAST_NAME) != 0 ? readString(in) : null;
+			license.canonicalName = (bits & CANONICAL_NAME) != 0 ? readString(in) : null;
+			license.organization = (bits & ORGANIZATION) != 0 ? readString(in) : null;
+			license.street = (bits & STREET) != 0 ? readString(in) : null;
+			license.city = (bits & CITY) != 0 ? readString(in) : null;
+			license.state = (bits & STATE) != 0 ? readString(in) : null;
+			license.country = (bits & COUNTRY) != 0 ? readString(in) : null;
+			license.purchaseId = (bits & PURCHASE_ID) != 0 ? readString(in) : null;
+			license.email = (bits & EMAIL) != 0 ? readString(in) : null;
+			int dates = (bits & DATES) != 0 ? in.get() : 0;
+			license.issued = (dates & ISSUED) != 0 ? fromEpochDay(in.getInt()) : null;
+			license.expire = (dates & EXPIRE) != 0 ? fromEpochDay(in.getInt()) : null;
+			if ((bits & KEY) != 0) {
+				license.key = in.get() == KEY_RAW ? Base64.getEncoder().encodeToString(readBytes(in)) : readString(in);
+			}
+
+			// the defaults of fromMap
+			if (license.purchaseId == null && license.activationCode.length() > 0) {
+				license.purchaseId = Misc.getMD5Sum(license.activationCode);
+			}
+			if (license.issued == null) {
+				license.issued = fromEpochDay(LocalDate.now().toEpochDay());
+			}
+			return license;
+		} catch (BufferUnderflowException ex) {
+			throw new IOException("License record truncated");
+		}
+	}
+
+	// Reads only as far as the activation code, for rebuilding indexes.
+	public static String decodeActivationCode(byte[] record, int offset, int length) throws IOException {
+		ByteBuffer in = ByteBuffer.wrap(record, offset, length);
+		try {
+			readVersion(in);
+			in.getShort();
+			return readString(in);
+		} catch (BufferUnderflowException ex) {
+			throw new IOException("License record truncated");
+		}
+	}
+
+	private static byte readVersion(ByteBuffer in) throws IOException {
+		byte version = in.get();
+		if (version < 1 || version > VERSION) {
+			throw new IOException("Unknown license record version " + version);
+		}
+		return version;
+	}
+
+	private static byte[] decodeKey(String key) {
+		try {
+			return Base64.getDecoder().decode(key);
+		} catch (IllegalArgumentException ex) {
+			return null;
+		}
+	}
+
+	private static int bit(String value, int bit) {
+		return value != null ? bit : 0;
+	}
+
+	private static long toEpochDay(Date date) {
+		// not date.toInstant(), which java.sql.Date doesn't support
+		return Instant.ofEpochMilli(date.getTime()).atZone(ZoneId.systemDefault()).toLocalDate().toEpochDay();
+	}
+
+	private static Date fromEpochDay(long day) {
+		return Date.from(LocalDate.ofEpochDay(day).atStartOfDay(ZoneId.systemDefault()).toInstant());
+	}
+
+	private static String readString(ByteBuffer in) throws IOException {
+		int length = readLength(in);
+		String value = new String(in.array(), in.position(), length, StandardCharsets.UTF_8);
+		in.position(in.position() + length);
+		return value;
+	}
+
+	private static byte[] readBytes(ByteBuffer in) throws IOException {
+		byte[] bytes = new byte[readLength(in)];
+		in.get(bytes);
+		return bytes;
+	}
+
+	private static int readLength(ByteBuffer in) throws IOException {
+		int length = 0;
+		for (int shift = 0; shift < 32; shift += 7) {
+			int b = in.get();
+			length |= (b & 0x7F) << shift;
+			if (b >= 0) {
+				if (length < 0 || length > in.remaining()) {
+					throw new BufferUnderflowException();
+				}
+				return length;
+			}
+		}
+		throw new IOException("License record has a malformed length");
+	}
+
+	// Big-endian ints and varint lengths on a growing buffer.
+	private static class Output extends ByteArrayOutputStream {
+
+		private Output() {
+			super(256);
+		}
+
+		private void writeInt(int value) {
+			this.write(value >>> 24);
+			this.write(value >>> 16);
+			this.write(value >>> 8);
+			this.write(value);
+		}
+
+		private void writeLong(long value) {
+			this.writeInt((int) (value >>> 32));
+			this.writeInt((int) value);
+		}
+
+		private void writeLength(int length) {
+			while ((length & ~0x7F) != 0) {
+				this.write((length & 0x7F) | 0x80);
+				length >>>= 7;
+			}
+			this.write(length);
+		}
+
+		// nothing for absent values, the presence bits tell
+		private void writeString(String value) {
+			if (value != null) {
+				this.writeBlob(value.getBytes(StandardCharsets.UTF_8));
+			}
+		}
+
+		private void writeBlob(byte[] bytes) {
+			this.writeLength(bytes.length);
+			this.write(bytes, 0, bytes.length);
+		}
+
+	}
+
+}
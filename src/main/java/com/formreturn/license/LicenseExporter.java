@@ -0,0 +1,192 @@
+package com.formreturn.license;
+
+import com.google.gson.Gson;
+import org.apache.commons.lang3.StringEscapeUtils;
+
+import java.io.BufferedWriter;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.Charset;
+import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+
+// Streams the license store out as NDJSON or CSV. A walker scans the activation codes of the store,
+// workers load and filter records in parallel and a single writer emits them, with bounded queues
+// in between so memory stays constant however many records there are. Output is in no particular order.
+public class LicenseExporter {
+
+	// compared by identity, marks the end of a queue
+	private static final String END = new String();
+
+	private static final Charset UTF8 = Charset.forName("UTF-8");
+
+	private static final String[] CSV_COLUMNS = new String[] {
+			"activationCode", "licenseType", "cert", "quantity", "firstName", "lastName", "canonicalName",
+			"organization", "street", "city", "state", "country", "purchaseId", "email", "issued", "expire",
+			"replacedBy", "upgradedFrom", "siteLicense", "key"
+	};
+
+	private final ExportOptions options;
+
+	private final AtomicLong scanned = new AtomicLong();
+
+	private final AtomicLong exported = new AtomicLong();
+
+	private final AtomicLong failed = new AtomicLong();
+
+	public LicenseExporter(ExportOptions options) {
+		this.options = options;
+	}
+
+	public long run(OutputStream output) throws Exception {
+		final LicenseStore store = LicenseStores.getDefault();
+		final BlockingQueue<String> codes = new ArrayBlockingQueue<String>(this.options.queueSize);
+		final BlockingQueue<String> lines = new ArrayBlockingQueue<String>(this.options.queueSize);
+		final AtomicInteger running = new AtomicInteger(this.options.workers);
+		final Exception[] walkFailure = new Exception[1];
+		final AtomicReference<RuntimeException> loadFailure = new AtomicReference<RuntimeException>();
+		ExecutorService executor = Executors.newFixedThreadPool(this.options.workers + 1);
+
+		this.scanned.set(0);
+		this.exported.set(0);
+		this.failed.set(0);
+
+		// WALKER
+		executor.execute(new Runnable() {
+			public void run() {
+				try {
+					store.scan(new LicenseStore.Visitor() {
+						public boolean visit(String activationCode) throws Exception {
+							codes.put(activationCode);
+							return true;
+						}
+					});
+				} catch (InterruptedException iex) {
+					return;
+				} catch (Exception ex) {
+					walkFailure[0] = ex;
+				}
+				try {
+					codes.put(END);
+				} catch (InterruptedException iex) {
+					// export aborted
+				}
+			}
+		});
+
+		// LOADERS
+		for (int i = 0; i < this.options.workers; i++) {
+			executor.execute(new Runnable() {
+				public void run() {
+					Gson gson = new Gson();
+					boolean aborted = false;
+					try {
+						String activationCode;
+						while ((activationCode = codes.take()) != END) {
+							scanned.incrementAndGet();
+							License license;
+							try {
+								license = store.get(activationCode);
+							} catch (Exception ex) {
+								failed.incrementAndGet();
+								System.err.println("Skipping " + activationCode + ": " + ex.getMessage());
+								continue;
+							}
+							if (license != null && options.matches(license)) {
+								lines.put(format(gson, license));
+							}
+						}
+						codes.put(END);
+					} catch (InterruptedException iex) {
+						// export aborted
+						aborted = true;
+					} catch (RuntimeException ex) {
+						// the other loaders carry on, the export fails once they are done
+						loadFailure.compareAndSet(null, ex);
+					} finally {
+						if (!aborted && running.decrementAndGet() == 0) {
+							try {
+								lines.put(END);
+							} catch (InterruptedException iex) {
+								// export aborted
+							}
+						}
+					}
+				}
+			});
+		}
+		executor.shutdown();
+
+		// WRITER (runs on the calling thread)
+		Writer writer = new BufferedWriter(new OutputStreamWriter(output, UTF8), 65536);
+		try {
+			if (this.options.format.equals("csv")) {
+				writer.write(join(CSV_COLUMNS));
+				writer.write('\n');
+			}
+			String line;
+			while ((line = lines.take()) != END) {
+				writer.write(line);
+				writer.write('\n');
+				this.exported.incrementAndGet();
+			}
+			writer.flush();
+		} finally {
+			executor.shutdownNow();
+			executor.awaitTermination(1, TimeUnit.MINUTES);
+		}
+		if (walkFailure[0] != null) {
+			throw walkFailure[0];
+		}
+		if (loadFailure.get() != null) {
+			throw loadFailure.get();
+		}
+		return this.exported.get();
+	}
+
+	public long getScanned() {
+		return this.scanned.get();
+	}
+
+	public long getExported() {
+		return this.exported.get();
+	}
+
+	public long getFailed() {
+		return this.failed.get();
+	}
+
+	private String format(Gson gson, License license) {
+		Map<String, String> map = license.toMap();
+		if (this.options.format.equals("csv")) {
+			String[] values = new String[CSV_COLUMNS.length];
+			for (int i = 0; i < CSV_COLUMNS.length; i++) {
+				values[i] = map.get(CSV_COLUMNS[i]);
+			}
+			return join(values);
+		}
+		return gson.toJson(map, Map.class);
+	}
+
+	private static String join(String[] values) {
+		StringBuilder line = new StringBuilder();
+		for (int i = 0; i < values.length; i++) {
+			if (i > 0) {
+				line.append(',');
+			}
+			if (values[i] != null) {
+				line.append(StringEscapeUtils.escapeCsv(values[i]));
+			}
+		}
+		return line.toString();
+	}
+
+}
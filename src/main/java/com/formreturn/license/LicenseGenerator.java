@@ -1,5 +1,9 @@
 package com.formreturn.license;
 
+import java.util.Date;
+import java.util.HashMap;
+import java.util.Map;
+
 import javax.security.auth.x500.X500Principal;
 
 import org.apache.commons.codec.binary.Base64;
@@ -60,6 +64,14 @@ public class LicenseGenerator {
 					0x1102E66CBBB68F2DL, 0xC49301FBDB95EE6BL,
 					0x6560331D1EDFCFF7L}).toString();
 
+	// Signing state (keystore, private key and PBE cipher) is expensive to build, so every thread keeps one
+	// warm manager per subject. LicenseManager.create is synchronized, hence one per thread rather than one shared.
+	private static final ThreadLocal<Map<String, LicenseManager>> MANAGERS = new ThreadLocal<Map<String, LicenseManager>>() {
+		protected Map<String, LicenseManager> initialValue() {
+			return new HashMap<String, LicenseManager>();
+		}
+	};
+
 	protected LicenseManager manager;
 
 	private License license;
@@ -86,11 +98,7 @@ public class LicenseGenerator {
 
 	public String generateLicense() throws Exception {
 
-		manager = new LicenseManager(
-				new DefaultLicenseParam(getSubject(), null, new DefaultKeyStoreParam(
-						LicenseGenerator.class, KEYSTORE_RESOURCE, getSubject(),
-						KEYSTORE_STORE_PWD, KEYSTORE_KEY_PWD),
-						new DefaultCipherParam(CIPHER_KEY_PWD)));
+		manager = getManager(getSubject());
 
 		final StringBuffer dn = new StringBuffer();
 		if (this.license.firstName != null && this.license.lastName != null) {
@@ -140,6 +148,33 @@ public class LicenseGenerator {
 
 	}
 
+	// Builds this thread's managers and signs a throwaway license for every certificate type,
+	// so the keystore, private keys and cipher are loaded before the first real request.
+	public static void warmUp() throws Exception {
+		int[] certs = new int[] {License.USER_LICENSE, License.TIMED_LICENSE, License.SERVER_LICENSE};
+		for (int cert: certs) {
+			License license = new License();
+			license.canonicalName = "Warm Up";
+			license.cert = cert;
+			license.issued = new Date();
+			new LicenseGenerator(license).generateLicense();
+		}
+	}
+
+	private static LicenseManager getManager(String subject) {
+		Map<String, LicenseManager> managers = MANAGERS.get();
+		LicenseManager manager = managers.get(subject);
+		if (manager == null) {
+			manager = new LicenseManager(
+					new DefaultLicenseParam(subject, null, new DefaultKeyStoreParam(
+							LicenseGenerator.class, KEYSTORE_RESOURCE, subject,
+							KEYSTORE_STORE_PWD, KEYSTORE_KEY_PWD),
+							new DefaultCipherParam(CIPHER_KEY_PWD)));
+			managers.put(subject, manager);
+		}
+		return manager;
+	}
+
 	private static void addAttribute(
 			final StringBuffer dn,
 			final String oid,
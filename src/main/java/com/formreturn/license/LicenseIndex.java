@@ -0,0 +1,23 @@
+package com.formreturn.license;
+
+import java.io.IOException;
+import java.util.Collection;
+
+// An index derived from license records, kept up to date by SecondaryIndexStore and rebuilt by it from
+// a pass over the store.
+public interface LicenseIndex {
+
+	// Loads the index, returns false if it doesn't exist yet and has to be built.
+	boolean open() throws IOException;
+
+	// Takes in licenses that are about to be saved.
+	void update(Collection<License> licenses) throws IOException;
+
+	// An empty index to be filled with update and then installed with replaceWith.
+	LicenseIndex createRebuild() throws IOException;
+
+	void replaceWith(LicenseIndex rebuilt) throws IOException;
+
+	void close() throws IOException;
+
+}
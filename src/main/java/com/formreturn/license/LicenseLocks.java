@@ -0,0 +1,192 @@
+package com.formreturn.license;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.nio.channels.FileLockInterruptionException;
+import java.util.Arrays;
+import java.util.concurrent.locks.ReentrantLock;
+
+// Serialises the mutations of an activation code across threads and processes without serialising the
+// service: codes are spread by hash over a fixed set of stripes, so mutations of different codes only wait
+// for each other when they happen to share a stripe. Within the process a stripe is a reentrant lock, across
+// processes it is a byte of <directory>/licenses.lock under a FileChannel file lock, which holds on a shared
+// filesystem as well (NFS byte-range locks). The file lock is taken once the thread has the stripe's lock and
+// released before it lets go of it, as the JVM allows one lock on a region per file. A mutation locks every
+// code it is going to save in one call, which takes the stripes in ascending order, so two mutations can't
+// deadlock, not even in different processes; a thread that holds stripes may lock them again but must not
+// lock any others. License.save checks the version of the stored record under the lock, which also catches
+// what other processes changed since the license was loaded.
+// All stripes share one channel, and closing it drops every file lock taken through it. A thread interrupted
+// in FileChannel.lock closes the channel, so file locks are only ever taken with tryLock, polling while the
+// stripe is locked by another process, and a stripe whose file lock is gone fails rather than carrying on
+// unlocked.
+public final class LicenseLocks {
+
+	private static final int STRIPES = 1024;
+
+	private static LicenseLocks instance;
+
+	private final File file;
+
+	private final ReentrantLock[] locks;
+
+	// file lock of each stripe, only touched by the thread holding the stripe
+	private final FileLock[] fileLocks;
+
+	private FileChannel channel;
+
+	private LicenseLocks(File file, int stripes) {
+		this.file = file;
+		this.locks = new ReentrantLock[stripes];
+		this.fileLocks = new FileLock[stripes];
+		for (int i = 0; i < stripes; i++) {
+			this.locks[i] = new ReentrantLock();
+		}
+	}
+
+	// The locks of the default store's directory.
+	public static synchronized LicenseLocks getDefault() {
+		if (instance == null) {
+			instance = new LicenseLocks(new File(LicenseStores.getDirectory(), "licenses.lock"), STRIPES);
+		}
+		return instance;
+	}
+
+	// Locks the stripes of the codes until the returned lock is released.
+	public Held lock(String... activationCodes) throws IOException {
+		int[] stripes = new int[activationCodes.length];
+		for (int i = 0; i < activationCodes.length; i++) {
+			stripes[i] = this.stripe(activationCodes[i]);
+		}
+		Arrays.sort(stripes);
+		int count = 0;
+		for (int i = 0; i < stripes.length; i++) {
+			if (i == 0 || stripes[i] != stripes[i - 1]) {
+				stripes[count++] = stripes[i];
+			}
+		}
+		Held held = new Held(Arrays.copyOf(stripes, count));
+		try {
+			for (int stripe: held.stripes) {
+				this.acquire(stripe);
+				held.acquired++;
+			}
+		} catch (IOException ex) {
+			held.release();
+			throw ex;
+		}
+		return held;
+	}
+
+	private void acquire(int stripe) throws IOException {
+		ReentrantLock lock = this.locks[stripe];
+		lock.lock();
+		try {
+			if (lock.getHoldCount() > 1) {
+				this.checkValid(stripe);
+				return;
+			}
+			// Polling rather than waiting in the kernel also keeps Linux from failing the wait (EDEADLK) when
+			// threads of two processes wait for stripes the other process holds, as it detects deadlocks per
+			// process rather than per thread, although the stripe order rules out a real deadlock.
+			this.fileLocks[stripe] = this.poll(this.getChannel(), stripe);
+		} catch (IOException ex) {
+			lock.unlock();
+			throw ex;
+		}
+	}
+
+	// Takes the file lock of the stripe, waiting while another process holds it. tryLock doesn't block, so
+	// an interrupt can't close the shared channel; it ends the wait between attempts instead.
+	private FileLock poll(FileChannel channel, int stripe) throws IOException {
+		long delay = 1;
+		while (true) {
+			FileLock fileLock = channel.tryLock(stripe, 1, false);
+			if (fileLock != null) {
+				return fileLock;
+			}
+			try {
+				Thread.sleep(delay);
+			} catch (InterruptedException ex) {
+				Thread.currentThread().interrupt();
+				throw new FileLockInterruptionException();
+			}
+			delay = Math.min(delay * 2, 50);
+		}
+	}
+
+	private void release(int stripe) throws IOException {
+		ReentrantLock lock = this.locks[stripe];
+		try {
+			if (lock.getHoldCount() == 1) {
+				FileLock fileLock = this.fileLocks[stripe];
+				this.fileLocks[stripe] = null;
+				if (!fileLock.isValid()) {
+					throw new IOException("The file lock of stripe " + stripe + " was lost while it was held");
+				}
+				fileLock.release();
+			}
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	// Fails when a stripe held by this thread lost its file lock, so the mutation doesn't go on unlocked.
+	private void checkValid(int stripe) throws IOException {
+		FileLock fileLock = this.fileLocks[stripe];
+		if (fileLock == null || !fileLock.isValid()) {
+			throw new IOException("The file lock of stripe " + stripe + " was lost while it was held");
+		}
+	}
+
+	// Opened once: reopening a closed channel would hand out new file locks while the stripes locked through
+	// the closed one went on as if they were still locked.
+	private synchronized FileChannel getChannel() throws IOException {
+		if (this.channel == null) {
+			this.file.getParentFile().mkdirs();
+			this.channel = new RandomAccessFile(this.file, "rw").getChannel();
+		} else if (!this.channel.isOpen()) {
+			throw new IOException("The channel of " + this.file + " was closed, the file locks taken through it are lost");
+		}
+		return this.channel;
+	}
+
+	private int stripe(String activationCode) {
+		int hash = activationCode.hashCode();
+		// spread the high bits, codes differ all over
+		hash ^= (hash >>> 16);
+		hash *= 0x45d9f3b;
+		hash ^= (hash >>> 16);
+		return hash & (this.locks.length - 1);
+	}
+
+	public final class Held {
+
+		private final int[] stripes;
+
+		// stripes locked so far, in order
+		private int acquired;
+
+		private Held(int[] stripes) {
+			this.stripes = stripes;
+		}
+
+		// Doesn't throw, as it's called from finally blocks where it would hide what the mutation threw. A file
+		// lock that fails to release was on a channel that is closed already, which dropped it.
+		public void release() {
+			while (this.acquired > 0) {
+				int stripe = this.stripes[--this.acquired];
+				try {
+					LicenseLocks.this.release(stripe);
+				} catch (IOException ex) {
+					System.err.println("Unable to release the file lock of stripe " + stripe + ": " + ex.getMessage());
+				}
+			}
+		}
+
+	}
+
+}
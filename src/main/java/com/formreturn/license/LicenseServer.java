@@ -0,0 +1,292 @@
+package com.formreturn.license;
+
+import com.google.gson.Gson;
+import com.google.gson.JsonParseException;
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+import org.apache.commons.io.IOUtils;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.URLDecoder;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+// HTTP daemon exposing the LicenseService operations, one endpoint per op:
+//   POST /redeemActivationCode  {"activationCode": "...", "license": {"firstName": "..."}}
+//   GET  /validateUpgradability?activationCode=...
+//   GET  /findLicenses?email=...
+//   GET  /getUpgradeChain?activationCode=...
+//   GET  /getSiteLicense?activationCode=...
+//   GET  /status
+// Request parameters are the same as in the batch protocol, taken from the JSON body and the query string.
+// Only the read ops answer GET. Ops that create or change licenses take POST with a JSON body only, which a
+// web page can't send to the daemon without a CORS preflight, so a page the operator happens to open can't
+// make it create codes.
+// Worker threads warm their signing state when they start, so requests never pay for keystore loading.
+// The HttpServer dispatcher only hands exchanges to the workers; when their queue is full it answers 503
+// at once rather than running the request itself, which would stop it accepting connections.
+public class LicenseServer {
+
+	private static final String[] OPS = new String[] {
+			"createLicense",
+			"createActivationCode",
+			"upgradeActivationCode",
+			"redeemActivationCode",
+			"createSiteLicenseCode",
+			"validateUpgradability",
+			"findLicenses",
+			"getUpgradeChain",
+			"getSiteLicense"
+	};
+
+	// ops that don't change the store, the only ones allowed over GET
+	private static final Set<String> READ_OPS = new HashSet<String>(Arrays.asList(
+			"validateUpgradability",
+			"findLicenses",
+			"getUpgradeChain",
+			"getSiteLicense"
+	));
+
+	private final Gson gson = new Gson();
+
+	private final LicenseService service;
+
+	private final ServiceOptions options;
+
+	private final long started = System.currentTimeMillis();
+
+	private final AtomicLong requests = new AtomicLong();
+
+	private final AtomicLong failures = new AtomicLong();
+
+	private final AtomicLong nanos = new AtomicLong();
+
+	private HttpServer server;
+
+	private ThreadPoolExecutor executor;
+
+	public LicenseServer(LicenseService service, ServiceOptions options) {
+		this.service = service;
+		this.options = options;
+	}
+
+	public void start() throws IOException {
+		this.executor = new ThreadPoolExecutor(this.options.workers, this.options.workers, 0, TimeUnit.MILLISECONDS,
+				new ArrayBlockingQueue<Runnable>(this.options.queueSize), new WarmThreadFactory(),
+				new ThreadPoolExecutor.AbortPolicy());
+		this.executor.prestartAllCoreThreads();
+
+		this.server = HttpServer.create(new InetSocketAddress(this.options.bind, this.options.port), this.options.queueSize);
+		for (final String op: OPS) {
+			this.server.createContext("/" + op, new HttpHandler() {
+				public void handle(final HttpExchange exchange) throws IOException {
+					dispatch(exchange, new Runnable() {
+						public void run() {
+							try {
+								handleOperation(op, exchange);
+							} catch (IOException ioe) {
+								// the client went away
+							} finally {
+								exchange.close();
+							}
+						}
+					});
+				}
+			});
+		}
+		this.server.createContext("/status", new HttpHandler() {
+			public void handle(final HttpExchange exchange) throws IOException {
+				dispatch(exchange, new Runnable() {
+					public void run() {
+						try {
+							send(exchange, 200, getStatus());
+						} catch (IOException ioe) {
+							// the client went away
+						} finally {
+							exchange.close();
+						}
+					}
+				});
+			}
+		});
+		// handlers run on the dispatcher thread and only queue the work
+		this.server.setExecutor(null);
+		this.server.start();
+	}
+
+	public void stop() {
+		this.server.stop(1);
+		this.executor.shutdown();
+	}
+
+	public InetSocketAddress getAddress() {
+		return this.server.getAddress();
+	}
+
+	public Map<String, Object> getStatus() {
+		Map<String, Object> status = new LinkedHashMap<String, Object>();
+		long count = this.requests.get();
+		status.put("uptimeSeconds", (System.currentTimeMillis() - this.started) / 1000);
+		status.put("requests", count);
+		status.put("failures", this.failures.get());
+		status.put("averageMillis", count == 0 ? 0 : this.nanos.get() / count / 1000000.0);
+		status.put("workers", this.options.workers);
+		status.put("queued", this.executor.getQueue().size());
+		try {
+			IndexedLicenseStore indexed = LicenseStores.find(IndexedLicenseStore.class);
+			if (indexed != null) {
+				ActivationCodeIndex index = indexed.getIndex();
+				Map<String, Object> codes = new LinkedHashMap<String, Object>();
+				codes.put("size", index.size());
+				codes.put("bloomFalsePositiveRate", index.getFalsePositiveRate());
+				codes.put("bloomExpectedFalsePositiveRate", index.getExpectedFalsePositiveRate());
+				codes.put("bloomObservedFalsePositiveRate", index.getObservedFalsePositiveRate());
+				codes.put("bloomNegatives", index.getBloomNegatives());
+				codes.put("bloomFalsePositives", index.getBloomFalsePositives());
+				status.put("codeIndex", codes);
+			}
+			CachingLicenseStore cache = LicenseStores.find(CachingLicenseStore.class);
+			if (cache != null) {
+				Map<String, Object> licenses = new LinkedHashMap<String, Object>();
+				licenses.put("policy", cache.getPolicy());
+				licenses.put("capacity", cache.getCapacity());
+				licenses.put("ttlMillis", cache.getTtl());
+				licenses.put("size", cache.size());
+				licenses.put("hits", cache.getHits());
+				licenses.put("misses", cache.getMisses());
+				licenses.put("hitRate", cache.getHitRate());
+				licenses.put("evictions", cache.getEvictions());
+				status.put("cache", licenses);
+			}
+		} catch (Exception ex) {
+			status.put("store", ex.getMessage());
+		}
+		return status;
+	}
+
+	// Runs on the dispatcher thread: queues the request for a worker or turns it away if the queue is full.
+	private void dispatch(HttpExchange exchange, Runnable request) throws IOException {
+		try {
+			this.executor.execute(request);
+		} catch (RejectedExecutionException ree) {
+			this.requests.incrementAndGet();
+			this.failures.incrementAndGet();
+			Map<String, Object> response = new LinkedHashMap<String, Object>();
+			response.put("ok", false);
+			response.put("error", "Server busy, try again later");
+			try {
+				this.send(exchange, 503, response);
+			} finally {
+				exchange.close();
+			}
+		}
+	}
+
+	private void handleOperation(String op, HttpExchange exchange) throws IOException {
+		long start = System.nanoTime();
+		Map<String, Object> response = new LinkedHashMap<String, Object>();
+		int status = 200;
+		try {
+			String method = exchange.getRequestMethod();
+			if (!method.equals("POST") && !(method.equals("GET") && READ_OPS.contains(op))) {
+				status = 405;
+				throw new Exception("Method not allowed: " + method);
+			}
+			if (!READ_OPS.contains(op)) {
+				String contentType = exchange.getRequestHeaders().getFirst("Content-Type");
+				if (contentType == null || !contentType.trim().toLowerCase().startsWith("application/json")) {
+					status = 415;
+					throw new Exception(op + " takes a JSON body (Content-Type: application/json)");
+				}
+			}
+			Map request = this.readRequest(exchange);
+			Object result = this.service.execute(op, request);
+			response.put("ok", true);
+			response.put("result", result);
+		} catch (Exception ex) {
+			if (status == 200) {
+				status = 400;
+			}
+			this.failures.incrementAndGet();
+			response.put("ok", false);
+			response.put("error", ex.getMessage() == null ? ex.toString() : ex.getMessage());
+		} finally {
+			this.requests.incrementAndGet();
+			this.nanos.addAndGet(System.nanoTime() - start);
+		}
+		this.send(exchange, status, response);
+	}
+
+	private Map readRequest(HttpExchange exchange) throws Exception {
+		Map request = null;
+		String body = IOUtils.toString(exchange.getRequestBody(), "UTF-8");
+		if (body.trim().length() > 0) {
+			try {
+				request = this.gson.fromJson(body, Map.class);
+			} catch (JsonParseException jpe) {
+				throw new Exception("Malformed request: " + jpe.getMessage());
+			}
+		}
+		if (request == null) {
+			request = new LinkedHashMap();
+		}
+		String query = exchange.getRequestURI().getRawQuery();
+		if (query != null) {
+			for (String pair: query.split("&")) {
+				int index = pair.indexOf('=');
+				if (index > 0) {
+					request.put(URLDecoder.decode(pair.substring(0, index), "UTF-8"),
+							URLDecoder.decode(pair.substring(index + 1), "UTF-8"));
+				}
+			}
+		}
+		return request;
+	}
+
+	private void send(HttpExchange exchange, int status, Object response) throws IOException {
+		byte[] bytes = this.gson.toJson(response).getBytes("UTF-8");
+		exchange.getResponseHeaders().set("Content-Type", "application/json; charset=utf-8");
+		exchange.sendResponseHeaders(status, bytes.length);
+		OutputStream out = exchange.getResponseBody();
+		try {
+			out.write(bytes);
+		} finally {
+			out.close();
+		}
+	}
+
+	private static class WarmThreadFactory implements ThreadFactory {
+
+		private final AtomicInteger count = new AtomicInteger();
+
+		public Thread newThread(final Runnable runnable) {
+			Thread thread = new Thread(new Runnable() {
+				public void run() {
+					try {
+						LicenseGenerator.warmUp();
+					} catch (Exception ex) {
+						System.err.println("Signing warm up failed: " + ex.getMessage());
+					}
+					runnable.run();
+				}
+			}, "license-server-" + this.count.incrementAndGet());
+			thread.setDaemon(false);
+			return thread;
+		}
+
+	}
+
+}
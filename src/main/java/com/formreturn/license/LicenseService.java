@@ -0,0 +1,219 @@
+package com.formreturn.license;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+// Non-interactive form of the Main operations, shared by the console, batch and service modes.
+public class LicenseService {
+
+	// most activation codes one request may create, bulk runs go through --codes
+	public static final int MAX_COUNT = 10000;
+
+	public String createLicense(Map<String, String> fields) throws Exception {
+		License license = new License();
+		license.fromMap(fields);
+		LicenseGenerator generator = new LicenseGenerator(license);
+		return generator.generateLicense();
+	}
+
+	public List<String> createActivationCode(String licenseType, int count) throws Exception {
+		if (count < 1 || count > MAX_COUNT) {
+			throw new Exception("count must be between 1 and " + MAX_COUNT);
+		}
+		List<License> licenses = new ArrayList<License>(count);
+		List<String> codes = new ArrayList<String>(count);
+		for (int i = 0; i < count; i++) {
+			License license = new License();
+			if (licenseType != null && licenseType.trim().length() > 0) {
+				license.licenseType = licenseType.trim();
+			}
+			license.activationCode = Misc.generateActivationCode();
+			licenses.add(license);
+			codes.add(license.activationCode);
+		}
+		License.saveAll(licenses);
+		return codes;
+	}
+
+	// The license is loaded under the locks of the old and new code, so concurrent upgrades of one code, in
+	// this process or another, create one new code and the others fail as already upgraded.
+	public String upgradeActivationCode(String activationCode) throws Exception {
+		String upgradeCode = Misc.generateActivationCode();
+		LicenseLocks.Held held = LicenseLocks.getDefault().lock(activationCode, upgradeCode);
+		try {
+			License license = new License();
+			license.loadLatest(activationCode);
+			License upgrade = new License();
+			return upgrade.upgradeActivationCode(license, upgradeCode);
+		} finally {
+			held.release();
+		}
+	}
+
+	// Redeemed under the lock of the code, so concurrent redeems of one code, in this process or another,
+	// generate one key.
+	public String redeemActivationCode(String activationCode, Map<String, String> fields) throws Exception {
+		LicenseLocks.Held held = LicenseLocks.getDefault().lock(activationCode);
+		try {
+			License license = new License();
+			license.fromMap(fields);
+			license.loadLatest(activationCode);
+			if (license.key == null) {
+				LicenseGenerator generator = new LicenseGenerator(license);
+				String licenseCode = generator.generateLicense();
+				license.save();
+				return licenseCode;
+			} else {
+				return license.key;
+			}
+		} finally {
+			held.release();
+		}
+	}
+
+	public String createSiteLicenseCode(String codes) throws Exception {
+		License license = new License();
+		return license.generateSiteActivationCode(codes);
+	}
+
+	public boolean isActivationCodeUpgradeable(String activationCode) throws Exception {
+		License license = new License();
+		license.load(activationCode);
+		return license.replacedBy == null;
+	}
+
+	// Licenses with the given email, purchaseId or organization, as stored.
+	public List<Map<String, String>> findLicenses(String field, String value) throws Exception {
+		SecondaryIndexStore indexes = LicenseStores.find(SecondaryIndexStore.class);
+		if (indexes == null) {
+			throw new Exception("Secondary indexes are not available");
+		}
+		List<Map<String, String>> licenses = new ArrayList<Map<String, String>>();
+		for (License license: indexes.find(field, value)) {
+			licenses.add(license.toMap());
+		}
+		return licenses;
+	}
+
+	// The site license the activation code is a member of, null if none.
+	public String getSiteLicense(String activationCode) throws Exception {
+		SecondaryIndexStore indexes = LicenseStores.find(SecondaryIndexStore.class);
+		if (indexes == null) {
+			throw new Exception("Site license members are not available");
+		}
+		return indexes.getSite(activationCode);
+	}
+
+	// The chain of upgrades the activation code is part of: its original, its latest and all codes in between,
+	// without upgrades that were never saved.
+	public Map<String, Object> getUpgradeChain(String activationCode) throws Exception {
+		SecondaryIndexStore indexes = LicenseStores.find(SecondaryIndexStore.class);
+		if (indexes == null) {
+			throw new Exception("Upgrade chains are not available");
+		}
+		List<String> history = indexes.getHistory(activationCode);
+		Map<String, Object> chain = new LinkedHashMap<String, Object>();
+		chain.put("original", history.get(0));
+		chain.put("latest", history.get(history.size() - 1));
+		chain.put("history", history);
+		return chain;
+	}
+
+	// Runs an operation named after the Main command it replaces. Parameters:
+	//   activationCode - code to upgrade, redeem, validate or get the upgrade chain or site license of
+	//   license        - object of license field values keyed by field name (createLicense, redeemActivationCode)
+	//   licenseType    - type of the new codes (createActivationCode)
+	//   count          - number of codes to create, at most MAX_COUNT (createActivationCode)
+	//   codes          - comma separated user codes (createSiteLicenseCode)
+	//   email, purchaseId or organization - value to look up (findLicenses)
+	public Object execute(String op, Map request) throws Exception {
+		if (op == null) {
+			throw new Exception("Missing op");
+		}
+		if (op.equals("createLicense")) {
+			return this.createLicense(getFields(request));
+		} else if (op.equals("createActivationCode")) {
+			return this.createActivationCode(getString(request, "licenseType"), getCount(request));
+		} else if (op.equals("upgradeActivationCode")) {
+			return this.upgradeActivationCode(getActivationCode(request));
+		} else if (op.equals("redeemActivationCode")) {
+			return this.redeemActivationCode(getActivationCode(request), getFields(request));
+		} else if (op.equals("createSiteLicenseCode")) {
+			String codes = getString(request, "codes");
+			if (codes == null) {
+				throw new Exception("Missing codes");
+			}
+			return this.createSiteLicenseCode(codes.trim());
+		} else if (op.equals("validateUpgradability")) {
+			return this.isActivationCodeUpgradeable(getActivationCode(request).toUpperCase());
+		} else if (op.equals("findLicenses")) {
+			for (String field: SecondaryIndexStore.FIELDS) {
+				String value = getString(request, field);
+				if (value != null) {
+					return this.findLicenses(field, value);
+				}
+			}
+			throw new Exception("Missing email, purchaseId or organization");
+		} else if (op.equals("getUpgradeChain")) {
+			return this.getUpgradeChain(getActivationCode(request).toUpperCase());
+		} else if (op.equals("getSiteLicense")) {
+			return this.getSiteLicense(getActivationCode(request).toUpperCase());
+		}
+		throw new Exception("Unknown op: " + op);
+	}
+
+	private static String getActivationCode(Map request) throws Exception {
+		String activationCode = getString(request, "activationCode");
+		if (activationCode == null) {
+			throw new Exception("Missing activationCode");
+		}
+		return activationCode.trim();
+	}
+
+	private static int getCount(Map request) throws Exception {
+		String count = getString(request, "count");
+		if (count == null) {
+			return 1;
+		}
+		try {
+			return (int) Double.parseDouble(count);
+		} catch (NumberFormatException nfe) {
+			throw new Exception("count is not a number: " + count);
+		}
+	}
+
+	// JSON numbers and booleans are accepted wherever the license expects text
+	private static String getString(Map map, String name) {
+		Object value = map.get(name);
+		if (value == null) {
+			return null;
+		}
+		if (value instanceof Double && ((Double) value) == Math.rint((Double) value)) {
+			return Long.toString(((Double) value).longValue());
+		}
+		return value.toString();
+	}
+
+	private static Map<String, String> getFields(Map request) throws Exception {
+		HashMap<String, String> fields = new HashMap<String, String>();
+		Object license = request.get("license");
+		if (license == null) {
+			return fields;
+		}
+		if (!(license instanceof Map)) {
+			throw new Exception("license must be an object");
+		}
+		Map map = (Map) license;
+		for (Object name: map.keySet()) {
+			String value = getString(map, (String) name);
+			if (value != null) {
+				fields.put((String) name, value);
+			}
+		}
+		return fields;
+	}
+
+}
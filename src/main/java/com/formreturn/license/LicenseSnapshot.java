@@ -0,0 +1,25 @@
+package com.formreturn.license;
+
+import java.util.List;
+
+// A frozen view of the records of a store as they were when it was opened, unaffected by later saves.
+// Obtained from SnapshotLicenseStore.openSnapshot and closed once read.
+public interface LicenseSnapshot {
+
+	// Where the view was frozen, for the record.
+	String getWatermark();
+
+	// Visits every activation code the snapshot holds, in no particular order, until the visitor returns false.
+	// May also visit codes saved since, get returns null for those.
+	void scan(LicenseStore.Visitor visitor) throws Exception;
+
+	// The license as it was when the snapshot was taken, null if it wasn't stored then.
+	License get(String activationCode) throws Exception;
+
+	// The licenses of the codes that were stored when the snapshot was taken, in the order of the codes. Reads
+	// a batch at once where the store can, given codes that are close in the order of scan, like a page of it.
+	List<License> getAll(List<String> activationCodes) throws Exception;
+
+	void close() throws Exception;
+
+}
@@ -0,0 +1,31 @@
+package com.formreturn.license;
+
+import java.util.Collection;
+
+// Persistence of License records keyed by activation code. License.save and License.load go through
+// the store returned by LicenseStores.getDefault(), so backends can be swapped by configuration.
+// Implementations must be safe for concurrent use.
+public interface LicenseStore {
+
+	// Returns the stored license, or null if the code isn't stored.
+	License get(String activationCode) throws Exception;
+
+	boolean exists(String activationCode) throws Exception;
+
+	void put(License license) throws Exception;
+
+	// Stores a batch of licenses, backends should make this cheaper than a put per license.
+	void putAll(Collection<License> licenses) throws Exception;
+
+	// Visits every stored activation code, in no particular order, until the visitor returns false.
+	void scan(Visitor visitor) throws Exception;
+
+	void close() throws Exception;
+
+	interface Visitor {
+
+		boolean visit(String activationCode) throws Exception;
+
+	}
+
+}
@@ -0,0 +1,245 @@
+package com.formreturn.license;
+
+import org.apache.commons.io.FileUtils;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.security.SecureRandom;
+
+// Creates the configured LicenseStore, fronted by the activation code index, the secondary indexes and the
+// license cache. System properties:
+//   formreturn.license.store      sharded (default), json, log, h2, or the class name of a LicenseStore with a (File) constructor
+//   formreturn.license.store.dir  directory of the store, defaults to ~/licenses
+//   formreturn.license.bloom.fpp  false positive rate of the Bloom filter in the code index, defaults to 0.01
+//   formreturn.license.sync       when saves reach the disk: group (default) syncs before a save returns and
+//                                 shares the sync between concurrent saves, always syncs every save on its
+//                                 own, none leaves it to the operating system
+//   formreturn.license.cache      eviction policy of the license cache, tinylfu (default), lru or none
+//   formreturn.license.cache.size licenses the cache holds, defaults to 10000
+//   formreturn.license.pool.size  database connections of the h2 store, defaults to the number of processors
+//   formreturn.license.shared     true if processes on more than one machine use the directory, over NFS or
+//                                 another network filesystem, false if they no longer do; the setting is kept
+//                                 in the directory (see isShared), processes started without it follow that
+//
+// A json or sharded directory can be used by several processes at once; log and h2 are opened by one process
+// at a time. Processes on several machines can share a json or sharded directory once it is marked shared:
+// the locks, journals and snapshots work through byte-range locks and plain file I/O, which network
+// filesystems keep coherent, but the code index is a shared memory mapping, which they don't. A shared
+// store goes without it, every lookup asks the store.
+public final class LicenseStores {
+
+	public static final String STORE_PROPERTY = "formreturn.license.store";
+
+	public static final String DIRECTORY_PROPERTY = "formreturn.license.store.dir";
+
+	public static final String BLOOM_FPP_PROPERTY = "formreturn.license.bloom.fpp";
+
+	public static final String SYNC_PROPERTY = "formreturn.license.sync";
+
+	public static final String SYNC_NONE = "none";
+
+	public static final String SYNC_ALWAYS = "always";
+
+	public static final String SYNC_GROUP = "group";
+
+	public static final String CACHE_PROPERTY = "formreturn.license.cache";
+
+	public static final String CACHE_SIZE_PROPERTY = "formreturn.license.cache.size";
+
+	// milliseconds a cached license is served, 0 for as long as it stays cached
+	public static final String CACHE_TTL_PROPERTY = "formreturn.license.cache.ttl";
+
+	public static final String POOL_SIZE_PROPERTY = "formreturn.license.pool.size";
+
+	public static final String SHARED_PROPERTY = "formreturn.license.shared";
+
+	// marks a store directory as shared between machines
+	private static final String SHARED_MARKER = ".shared";
+
+	// generation of the store directory, see IndexedLicenseStore
+	private static final String GENERATION_FILE = ".generation";
+
+	private static final SecureRandom random = new SecureRandom();
+
+	private static LicenseStore instance;
+
+	private LicenseStores() {
+	}
+
+	public static synchronized LicenseStore getDefault() throws Exception {
+		if (instance == null) {
+			LicenseStore store = open(System.getProperty(STORE_PROPERTY, "sharded"), getDirectory());
+			double falsePositiveRate;
+			try {
+				falsePositiveRate = Double.parseDouble(System.getProperty(BLOOM_FPP_PROPERTY, "0.01"));
+			} catch (NumberFormatException nfe) {
+				throw new Exception(BLOOM_FPP_PROPERTY + " is not a number: " + System.getProperty(BLOOM_FPP_PROPERTY));
+			}
+			File codeIndex = new File(getIndexDirectory(), "codes.idx");
+			if (!isShared()) {
+				store = new IndexedLicenseStore(store, new ActivationCodeIndex(codeIndex, falsePositiveRate));
+			} else {
+				// codes saved meanwhile won't be in it, the store rebuilds it once it's no longer shared
+				codeIndex.delete();
+				setGeneration(newGeneration());
+			}
+			store = new SecondaryIndexStore(store, getIndexDirectory());
+			String policy = System.getProperty(CACHE_PROPERTY, CachingLicenseStore.TINY_LFU);
+			if (!policy.equals("none")) {
+				int size;
+				try {
+					size = Integer.parseInt(System.getProperty(CACHE_SIZE_PROPERTY, "10000"));
+				} catch (NumberFormatException nfe) {
+					throw new Exception(CACHE_SIZE_PROPERTY + " is not a number: " + System.getProperty(CACHE_SIZE_PROPERTY));
+				}
+				long ttl;
+				try {
+					ttl = Long.parseLong(System.getProperty(CACHE_TTL_PROPERTY, "2000"));
+				} catch (NumberFormatException nfe) {
+					throw new Exception(CACHE_TTL_PROPERTY + " is not a number: " + System.getProperty(CACHE_TTL_PROPERTY));
+				}
+				store = new CachingLicenseStore(store, policy, size, ttl);
+			}
+			instance = store;
+			Runtime.getRuntime().addShutdownHook(new Thread() {
+				public void run() {
+					try {
+						setDefault(null);
+					} catch (Exception ex) {
+						System.err.println("Unable to close the license store: " + ex.getMessage());
+					}
+				}
+			});
+		}
+		return instance;
+	}
+
+	// Replaces the default store, closing the previous one.
+	public static synchronized void setDefault(LicenseStore store) throws Exception {
+		if (instance != null && instance != store) {
+			instance.close();
+		}
+		instance = store;
+	}
+
+	// The store of the given type in the chain of the default store, null if it isn't part of it.
+	public static <T extends LicenseStore> T find(Class<T> type) throws Exception {
+		LicenseStore store = getDefault();
+		while (!type.isInstance(store)) {
+			if (!(store instanceof ForwardingLicenseStore)) {
+				return null;
+			}
+			store = ((ForwardingLicenseStore) store).getStore();
+		}
+		return type.cast(store);
+	}
+
+	// The default store without its cache, for reads that must see what other processes saved.
+	public static LicenseStore getUncached() throws Exception {
+		CachingLicenseStore cache = find(CachingLicenseStore.class);
+		return cache == null ? getDefault() : cache.getStore();
+	}
+
+	public static LicenseStore open(String type, File directory) throws Exception {
+		if (type.equals("sharded")) {
+			return new ShardedJsonLicenseStore(directory);
+		} else if (type.equals("json")) {
+			return new JsonFileLicenseStore(directory);
+		} else if (type.equals("log")) {
+			return new LogLicenseStore(directory);
+		} else if (type.equals("h2")) {
+			int poolSize;
+			try {
+				poolSize = Integer.parseInt(System.getProperty(POOL_SIZE_PROPERTY,
+						Integer.toString(Runtime.getRuntime().availableProcessors())));
+			} catch (NumberFormatException nfe) {
+				throw new Exception(POOL_SIZE_PROPERTY + " is not a number: " + System.getProperty(POOL_SIZE_PROPERTY));
+			}
+			return new H2LicenseStore(directory, poolSize);
+		}
+		try {
+			Class<?> storeClass = Class.forName(type);
+			return (LicenseStore) storeClass.getConstructor(File.class).newInstance(directory);
+		} catch (ClassNotFoundException cnfe) {
+			throw new Exception("Unknown license store: " + type);
+		}
+	}
+
+	public static String getSyncMode() {
+		String mode = System.getProperty(SYNC_PROPERTY, SYNC_GROUP);
+		if (!mode.equals(SYNC_NONE) && !mode.equals(SYNC_ALWAYS) && !mode.equals(SYNC_GROUP)) {
+			throw new IllegalArgumentException("Unknown sync mode: " + mode);
+		}
+		return mode;
+	}
+
+	// Whether processes on several machines use the store directory. The property marks the directory with a
+	// file, or removes the mark, so every process opening it agrees on whether there is a code index, also
+	// those started without the property. Processes on other machines have to be stopped before removing it.
+	public static boolean isShared() throws IOException {
+		File marker = new File(getDirectory(), SHARED_MARKER);
+		String shared = System.getProperty(SHARED_PROPERTY);
+		if (shared == null) {
+			return marker.exists();
+		} else if (shared.equals("true")) {
+			getDirectory().mkdirs();
+			if (!marker.createNewFile() && !marker.exists()) {
+				throw new IOException("Unable to mark " + getDirectory() + " as shared");
+			}
+			return true;
+		} else if (shared.equals("false")) {
+			if (marker.exists() && !marker.delete()) {
+				throw new IOException("Unable to unmark " + getDirectory() + " as shared");
+			}
+			return false;
+		}
+		throw new IllegalArgumentException(SHARED_PROPERTY + " must be true or false: " + shared);
+	}
+
+	// The generation last written to the store directory, 0 if there is none.
+	public static long getGeneration() throws IOException {
+		File file = new File(getDirectory(), GENERATION_FILE);
+		if (!file.exists()) {
+			return 0;
+		}
+		try {
+			return Long.parseLong(FileUtils.readFileToString(file, "UTF-8").trim());
+		} catch (NumberFormatException nfe) {
+			return 0;
+		}
+	}
+
+	public static void setGeneration(long generation) throws IOException {
+		File file = new File(getDirectory(), GENERATION_FILE);
+		File temp = new File(file.getPath() + ".tmp");
+		FileUtils.writeStringToFile(temp, Long.toString(generation), "UTF-8");
+		Files.move(temp.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+	}
+
+	// A random generation other than 0.
+	public static long newGeneration() {
+		long generation;
+		do {
+			generation = random.nextLong();
+		} while (generation == 0);
+		return generation;
+	}
+
+	public static File getDirectory() {
+		String directory = System.getProperty(DIRECTORY_PROPERTY);
+		if (directory == null) {
+			return new File(Misc.getPath("licenses"));
+		}
+		return new File(directory);
+	}
+
+	// Directory for indexes kept next to the store.
+	public static File getIndexDirectory() {
+		File directory = new File(getDirectory(), ".index");
+		directory.mkdirs();
+		return directory;
+	}
+
+}
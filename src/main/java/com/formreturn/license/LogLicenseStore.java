@@ -0,0 +1,443 @@
+package com.formreturn.license;
+
+import com.google.gson.Gson;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.nio.channels.OverlappingFileLockException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.zip.CRC32;
+
+// Append-only log of license records in numbered segment files under <directory>/log, with an in-memory
+// index from activation code to the position of its latest record. A save is a sequential append and a
+// load is one positioned read. Each record is
+//   int length | int crc32 | byte format | payload
+// where length and crc cover format and payload. On close the index is written to a hint file together
+// with the log position it covers, so opening only replays the records appended after it. A torn record
+// at the end of the last segment (a crash mid-append) is truncated away during that replay.
+// Records are written in the binary format of LicenseCodec; JSON records of older logs are still read.
+// Unless syncing is off a save returns once its records are forced to disk; in group mode one force covers
+// the appends of all saves that were waiting for it.
+// As records are never overwritten, a snapshot is a copy of the index up to the current end of the log.
+// The index only lives in memory and opening truncates a torn tail, so only one process can have the log
+// open; it holds a lock on log/store.lock while it does.
+public class LogLicenseStore implements SnapshotLicenseStore {
+
+	static final byte FORMAT_JSON = 'J';
+
+	static final byte FORMAT_BINARY = 'B';
+
+	private static final int HINT_MAGIC = 0x46524C48;
+
+	private static final long SEGMENT_SIZE = 64L * 1024 * 1024;
+
+	// 40 bits of offset within a segment, the rest is the segment number
+	private static final int OFFSET_BITS = 40;
+
+	private static final long OFFSET_MASK = (1L << OFFSET_BITS) - 1;
+
+	private final File directory;
+
+	private final ConcurrentHashMap<String, Long> index = new ConcurrentHashMap<String, Long>();
+
+	private final ConcurrentHashMap<Integer, FileChannel> segments = new ConcurrentHashMap<Integer, FileChannel>();
+
+	private final String syncMode = LicenseStores.getSyncMode();
+
+	private final GroupCommit<License> commits = new GroupCommit<License>(new GroupCommit.Syncer<License>() {
+		public void sync(List<License> batch) throws IOException {
+			LogLicenseStore.this.sync();
+		}
+	});
+
+	private FileChannel owner;
+
+	private FileLock ownership;
+
+	private int activeSegment;
+
+	private FileChannel active;
+
+	private long activeSize;
+
+	public LogLicenseStore(File directory) throws IOException {
+		this.directory = new File(directory, "log");
+		this.directory.mkdirs();
+		this.owner = new RandomAccessFile(new File(this.directory, "store.lock"), "rw").getChannel();
+		try {
+			this.ownership = this.owner.tryLock();
+		} catch (OverlappingFileLockException ex) {
+			// open in this process already
+		}
+		if (this.ownership == null) {
+			this.owner.close();
+			throw new IOException("The license log in " + this.directory + " is in use by another process");
+		}
+		this.open();
+	}
+
+	public License get(String activationCode) throws Exception {
+		Long position = this.index.get(activationCode);
+		if (position == null) {
+			return null;
+		}
+		return decode(this.read(position));
+	}
+
+	public boolean exists(String activationCode) {
+		return this.index.containsKey(activationCode);
+	}
+
+	public void put(License license) throws Exception {
+		this.putAll(Collections.singletonList(license));
+	}
+
+	// The whole batch is written with a single append.
+	public void putAll(Collection<License> licenses) throws Exception {
+		List<byte[]> records = new ArrayList<byte[]>(licenses.size());
+		int size = 0;
+		for (License license: licenses) {
+			byte[] record = encodeRecord(FORMAT_BINARY, LicenseCodec.encode(license));
+			records.add(record);
+			size += record.length;
+		}
+		ByteBuffer buffer = ByteBuffer.allocate(size);
+		for (byte[] record: records) {
+			buffer.put(record);
+		}
+		buffer.flip();
+
+		synchronized (this) {
+			if (this.activeSize > 0 && this.activeSize + size > SEGMENT_SIZE) {
+				this.roll();
+			}
+			long offset = this.activeSize;
+			while (buffer.hasRemaining()) {
+				this.active.write(buffer, this.activeSize + buffer.position());
+			}
+			this.activeSize += size;
+			int i = 0;
+			for (License license: licenses) {
+				this.index.put(license.activationCode, position(this.activeSegment, offset));
+				offset += records.get(i++).length;
+			}
+		}
+		if (this.syncMode.equals(LicenseStores.SYNC_GROUP)) {
+			this.commits.commitAll(licenses);
+		} else if (this.syncMode.equals(LicenseStores.SYNC_ALWAYS)) {
+			this.sync();
+		}
+	}
+
+	public void scan(Visitor visitor) throws Exception {
+		for (String activationCode: this.index.keySet()) {
+			if (!visitor.visit(activationCode)) {
+				return;
+			}
+		}
+	}
+
+	public synchronized void close() throws Exception {
+		if (this.active == null) {
+			return;
+		}
+		this.active.force(false);
+		this.writeHint();
+		for (FileChannel channel: this.segments.values()) {
+			channel.close();
+		}
+		this.segments.clear();
+		this.active = null;
+		this.ownership.release();
+		this.owner.close();
+	}
+
+	public LicenseSnapshot openSnapshot() {
+		final HashMap<String, Long> positions;
+		final String watermark;
+		synchronized (this) {
+			positions = new HashMap<String, Long>(this.index);
+			watermark = "segment " + this.activeSegment + " offset " + this.activeSize;
+		}
+		return new LicenseSnapshot() {
+			public String getWatermark() {
+				return watermark;
+			}
+
+			public void scan(Visitor visitor) throws Exception {
+				for (String activationCode: positions.keySet()) {
+					if (!visitor.visit(activationCode)) {
+						return;
+					}
+				}
+			}
+
+			public License get(String activationCode) throws Exception {
+				Long position = positions.get(activationCode);
+				return position == null ? null : decode(read(position));
+			}
+
+			public List<License> getAll(List<String> activationCodes) throws Exception {
+				List<License> licenses = new ArrayList<License>(activationCodes.size());
+				for (String activationCode: activationCodes) {
+					License license = this.get(activationCode);
+					if (license != null) {
+						licenses.add(license);
+					}
+				}
+				return licenses;
+			}
+
+			public void close() {
+			}
+		};
+	}
+
+	public int size() {
+		return this.index.size();
+	}
+
+	// Forces appended records to disk.
+	public void sync() throws IOException {
+		FileChannel channel;
+		synchronized (this) {
+			channel = this.active;
+		}
+		channel.force(false);
+	}
+
+	private synchronized void open() throws IOException {
+		int[] ids = this.listSegments();
+		long[] watermark = this.readHint(ids);
+		int fromSegment = (int) watermark[0];
+		long fromOffset = watermark[1];
+		for (int i = 0; i < ids.length; i++) {
+			this.segments.put(ids[i], new RandomAccessFile(this.getSegmentFile(ids[i]), "rw").getChannel());
+			if (ids[i] >= fromSegment) {
+				this.replay(ids[i], ids[i] == fromSegment ? fromOffset : 0, i == ids.length - 1);
+			}
+		}
+		this.activeSegment = ids.length == 0 ? 1 : ids[ids.length - 1];
+		this.active = this.segments.get(this.activeSegment);
+		if (this.active == null) {
+			this.active = new RandomAccessFile(this.getSegmentFile(this.activeSegment), "rw").getChannel();
+			this.segments.put(this.activeSegment, this.active);
+		}
+		this.activeSize = this.active.size();
+		// the hint is stale as soon as anything is appended, a crash must fall back to replaying the log
+		new File(this.directory, "index.hint").delete();
+	}
+
+	// Rebuilds the index from the records of a segment starting at offset. A torn record at the end of
+	// the last segment is cut off, anywhere else the remainder of the segment is reported and skipped.
+	private void replay(int segment, long offset, boolean last) throws IOException {
+		FileChannel channel = this.segments.get(segment);
+		long size = channel.size();
+		FileInputStream fis = new FileInputStream(this.getSegmentFile(segment));
+		try {
+			fis.getChannel().position(offset);
+			DataInputStream in = new DataInputStream(new BufferedInputStream(fis, 65536));
+			while (offset < size) {
+				byte[] payload;
+				try {
+					int length = in.readInt();
+					int crc = in.readInt();
+					if (length <= 0 || offset + 8 + length > size) {
+						throw new EOFException();
+					}
+					payload = new byte[length];
+					in.readFully(payload);
+					CRC32 checksum = new CRC32();
+					checksum.update(payload);
+					if ((int) checksum.getValue() != crc) {
+						throw new EOFException();
+					}
+				} catch (EOFException eof) {
+					if (last) {
+						channel.truncate(offset);
+					} else {
+						System.err.println("License log segment " + segment + " is damaged after offset " + offset);
+					}
+					return;
+				}
+				this.index.put(decodeActivationCode(payload), position(segment, offset));
+				offset += 8 + payload.length;
+			}
+		} finally {
+			fis.close();
+		}
+	}
+
+	private byte[] read(long position) throws IOException {
+		FileChannel channel = this.segments.get((int) (position >>> OFFSET_BITS));
+		long offset = position & OFFSET_MASK;
+		ByteBuffer header = ByteBuffer.allocate(8);
+		readFully(channel, header, offset);
+		header.flip();
+		int length = header.getInt();
+		int crc = header.getInt();
+		ByteBuffer payload = ByteBuffer.allocate(length);
+		readFully(channel, payload, offset + 8);
+		CRC32 checksum = new CRC32();
+		checksum.update(payload.array());
+		if ((int) checksum.getValue() != crc) {
+			throw new IOException("License record at " + offset + " fails its checksum");
+		}
+		return payload.array();
+	}
+
+	private void roll() throws IOException {
+		this.active.force(false);
+		this.activeSegment++;
+		this.active = new RandomAccessFile(this.getSegmentFile(this.activeSegment), "rw").getChannel();
+		this.segments.put(this.activeSegment, this.active);
+		this.activeSize = 0;
+	}
+
+	private void writeHint() throws IOException {
+		File hint = new File(this.directory, "index.hint");
+		File temp = new File(this.directory, "index.hint.tmp");
+		FileOutputStream fos = new FileOutputStream(temp);
+		DataOutputStream out = new DataOutputStream(new BufferedOutputStream(fos, 65536));
+		try {
+			out.writeInt(HINT_MAGIC);
+			out.writeInt(this.activeSegment);
+			out.writeLong(this.activeSize);
+			out.writeInt(this.index.size());
+			for (Map.Entry<String, Long> entry: this.index.entrySet()) {
+				out.writeUTF(entry.getKey());
+				out.writeLong(entry.getValue());
+			}
+			out.flush();
+			fos.getFD().sync();
+		} finally {
+			out.close();
+		}
+		if (!temp.renameTo(hint)) {
+			throw new IOException("Unable to write " + hint);
+		}
+	}
+
+	// Loads the hint into the index, returns the segment and offset replay has to start from.
+	private long[] readHint(int[] ids) {
+		File hint = new File(this.directory, "index.hint");
+		if (!hint.exists() || ids.length == 0) {
+			return new long[] {0, 0};
+		}
+		try {
+			DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(hint), 65536));
+			try {
+				if (in.readInt() != HINT_MAGIC) {
+					return new long[] {0, 0};
+				}
+				int segment = in.readInt();
+				long offset = in.readLong();
+				if (Arrays.binarySearch(ids, segment) < 0 || this.getSegmentFile(segment).length() < offset) {
+					return new long[] {0, 0};
+				}
+				int count = in.readInt();
+				for (int i = 0; i < count; i++) {
+					this.index.put(in.readUTF(), in.readLong());
+				}
+				return new long[] {segment, offset};
+			} finally {
+				in.close();
+			}
+		} catch (IOException ex) {
+			this.index.clear();
+			return new long[] {0, 0};
+		}
+	}
+
+	private int[] listSegments() {
+		File[] files = this.directory.listFiles();
+		List<Integer> ids = new ArrayList<Integer>();
+		if (files != null) {
+			for (File file: files) {
+				String name = file.getName();
+				if (name.endsWith(".seg")) {
+					try {
+						ids.add(Integer.parseInt(name.substring(0, name.length() - 4)));
+					} catch (NumberFormatException nfe) {
+						// not a segment
+					}
+				}
+			}
+		}
+		Collections.sort(ids);
+		int[] result = new int[ids.size()];
+		for (int i = 0; i < result.length; i++) {
+			result[i] = ids.get(i);
+		}
+		return result;
+	}
+
+	private File getSegmentFile(int segment) {
+		return new File(this.directory, String.format("%08d.seg", segment));
+	}
+
+	private static long position(int segment, long offset) {
+		return ((long) segment << OFFSET_BITS) | offset;
+	}
+
+	private static void readFully(FileChannel channel, ByteBuffer buffer, long position) throws IOException {
+		while (buffer.hasRemaining()) {
+			if (channel.read(buffer, position + buffer.position()) < 0) {
+				throw new EOFException("License record truncated at " + position);
+			}
+		}
+	}
+
+	static byte[] encodeRecord(byte format, byte[] body) {
+		ByteBuffer record = ByteBuffer.allocate(8 + 1 + body.length);
+		CRC32 checksum = new CRC32();
+		checksum.update(format);
+		checksum.update(body);
+		record.putInt(1 + body.length);
+		record.putInt((int) checksum.getValue());
+		record.put(format);
+		record.put(body);
+		return record.array();
+	}
+
+	// payload is the format byte followed by the body
+	private static License decode(byte[] payload) throws Exception {
+		if (payload[0] == FORMAT_BINARY) {
+			return LicenseCodec.decode(payload, 1, payload.length - 1);
+		} else if (payload[0] != FORMAT_JSON) {
+			throw new IOException("Unknown license record format " + payload[0]);
+		}
+		License license = new License();
+		license.fromJson(new String(payload, 1, payload.length - 1, "UTF-8"));
+		return license;
+	}
+
+	private static String decodeActivationCode(byte[] payload) throws IOException {
+		if (payload[0] == FORMAT_BINARY) {
+			return LicenseCodec.decodeActivationCode(payload, 1, payload.length - 1);
+		} else if (payload[0] != FORMAT_JSON) {
+			throw new IOException("Unknown license record format " + payload[0]);
+		}
+		Map map = new Gson().fromJson(new String(payload, 1, payload.length - 1, "UTF-8"), Map.class);
+		return (String) map.get("activationCode");
+	}
+
+}
@@ -0,0 +1,27 @@
+package com.formreturn.license;
+
+public class LookupOptions extends Options {
+
+	// license field to look up and the value it must have
+	public String field;
+
+	public String value;
+
+	protected boolean apply(String name, String value) {
+		if (name.equals("--email")) {
+			this.field = "email";
+		} else if (name.equals("--purchase-id")) {
+			this.field = "purchaseId";
+		} else if (name.equals("--organization")) {
+			this.field = "organization";
+		} else {
+			return false;
+		}
+		if (value == null) {
+			throw new IllegalArgumentException(name + " requires a value");
+		}
+		this.value = value;
+		return true;
+	}
+
+}
@@ -1,102 +1,266 @@
 package com.formreturn.license;
 
 import com.google.gson.Gson;
-import com.google.gson.internal.LinkedTreeMap;
-import org.apache.commons.io.FileUtils;
 import org.apache.commons.lang3.StringUtils;
 
 import java.io.File;
-import java.text.ParseException;
-import java.text.SimpleDateFormat;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.ArrayList;
 import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
 import java.util.Scanner;
 
 public final class Main {
 
 	private static Main instance;
 
+	private final LicenseService service = new LicenseService();
+
 	public static void main(String[] args) {
 		Main.instance = new Main();
-		if (args.length > 0) {
-			for (String arg: args) {
+		if (args.length > 0 && args[0].equals("--batch")) {
+			ServiceOptions options = new ServiceOptions();
+			parseOptions(options, args, 1);
+			try {
+				new BatchProcessor(Main.instance.service, options).run(System.in, System.out);
+			} catch (Exception ex) {
+				ex.printStackTrace();
+				System.exit(1);
+			}
+		} else if (args.length > 0 && args[0].equals("--daemon")) {
+			ServiceOptions options = new ServiceOptions();
+			parseOptions(options, args, 1);
+			try {
+				final LicenseServer server = new LicenseServer(Main.instance.service, options);
+				server.start();
+				Runtime.getRuntime().addShutdownHook(new Thread() {
+					public void run() {
+						server.stop();
+					}
+				});
+				System.out.println("License service listening on " + server.getAddress());
+			} catch (Exception ex) {
+				ex.printStackTrace();
+				System.exit(1);
+			}
+		} else if (args.length > 0 && args[0].equals("--codes")) {
+			CodeOptions options = new CodeOptions();
+			parseOptions(options, args, 1);
+			try {
+				long start = System.currentTimeMillis();
+				OutputStream out = options.out == null ? System.out : new FileOutputStream(options.out);
+				try {
+					long created = new CodeGenerator(options).run(out);
+					System.err.println(String.format("Created %d %s activation codes in %.1fs",
+							created, options.licenseType, (System.currentTimeMillis() - start) / 1000.0));
+				} finally {
+					if (out != System.out) {
+						out.close();
+					}
+				}
+			} catch (Exception ex) {
+				ex.printStackTrace();
+				System.exit(1);
+			}
+		} else if (args.length > 0 && args[0].equals("--export")) {
+			ExportOptions options = new ExportOptions();
+			parseOptions(options, args, 1);
+			try {
+				long start = System.currentTimeMillis();
+				OutputStream out = options.out == null ? System.out : new FileOutputStream(options.out);
+				try {
+					LicenseExporter exporter = new LicenseExporter(options);
+					exporter.run(out);
+					System.err.println(String.format("Exported %d of %d licenses in %.1fs (%d unreadable)",
+							exporter.getExported(), exporter.getScanned(), (System.currentTimeMillis() - start) / 1000.0,
+							exporter.getFailed()));
+				} finally {
+					if (out != System.out) {
+						out.close();
+					}
+				}
+			} catch (Exception ex) {
+				ex.printStackTrace();
+				System.exit(1);
+			}
+		} else if (args.length > 0 && args[0].equals("--migrate-shards")) {
+			MigrateOptions options = new MigrateOptions();
+			parseOptions(options, args, 1);
+			try {
+				long start = System.currentTimeMillis();
+				File directory = LicenseStores.getDirectory();
+				long moved = new ShardedJsonLicenseStore(directory).migrate(options.workers);
+				System.err.println(String.format("Moved %d licenses in %s into shards in %.1fs",
+						moved, directory, (System.currentTimeMillis() - start) / 1000.0));
+			} catch (Exception ex) {
+				ex.printStackTrace();
+				System.exit(1);
+			}
+		} else if (args.length > 0 && args[0].equals("--rebuild-index")) {
+			try {
+				long start = System.currentTimeMillis();
+				IndexedLicenseStore store = LicenseStores.find(IndexedLicenseStore.class);
+				// a shared store has no code index
+				if (store != null) {
+					store.rebuildIndex();
+				}
+				LicenseStores.find(SecondaryIndexStore.class).rebuildIndexes();
+				if (store != null) {
+					System.err.println(String.format("Indexed %d activation codes in %.1fs",
+							store.getIndex().size(), (System.currentTimeMillis() - start) / 1000.0));
+				} else {
+					System.err.println(String.format("Rebuilt the indexes in %.1fs", (System.currentTimeMillis() - start) / 1000.0));
+				}
+			} catch (Exception ex) {
+				ex.printStackTrace();
+				System.exit(1);
+			}
+		} else if (args.length > 0 && args[0].equals("--snapshot")) {
+			BackupOptions options = new BackupOptions();
+			parseOptions(options, args, 1);
+			try {
+				long start = System.currentTimeMillis();
+				OutputStream out = options.out == null ? System.out : new FileOutputStream(options.out);
+				try {
+					LicenseBackup backup = new LicenseBackup(options);
+					backup.snapshot(out);
+					System.err.println(String.format("Wrote a snapshot of %d licenses as of %s in %.1fs",
+							backup.getRecords(), backup.getWatermark(), (System.currentTimeMillis() - start) / 1000.0));
+				} finally {
+					if (out != System.out) {
+						out.close();
+					}
+				}
+			} catch (Exception ex) {
+				ex.printStackTrace();
+				System.exit(1);
+			}
+		} else if (args.length > 0 && args[0].equals("--restore")) {
+			BackupOptions options = new BackupOptions();
+			List<String> files = parseOptions(options, args, 1);
+			try {
+				long start = System.currentTimeMillis();
+				InputStream in = files.isEmpty() ? System.in : new FileInputStream(files.get(0));
+				try {
+					LicenseBackup backup = new LicenseBackup(options);
+					backup.restore(in);
+					System.err.println(String.format("Restored %d licenses as of %s in %.1fs",
+							backup.getRecords(), backup.getWatermark(), (System.currentTimeMillis() - start) / 1000.0));
+				} finally {
+					if (in != System.in) {
+						in.close();
+					}
+				}
+			} catch (Exception ex) {
+				ex.printStackTrace();
+				System.exit(1);
+			}
+		} else if (args.length > 0 && args[0].equals("--lookup")) {
+			LookupOptions options = new LookupOptions();
+			parseOptions(options, args, 1);
+			if (options.field == null) {
+				System.err.println("--lookup needs --email, --purchase-id or --organization");
+				System.exit(1);
+			}
+			try {
+				long start = System.currentTimeMillis();
+				List<Map<String, String>> licenses = Main.instance.service.findLicenses(options.field, options.value);
+				Gson gson = new Gson();
+				for (Map<String, String> license: licenses) {
+					System.out.println(gson.toJson(license));
+				}
+				System.err.println(String.format("Found %d licenses in %dms", licenses.size(), System.currentTimeMillis() - start));
+			} catch (Exception ex) {
+				ex.printStackTrace();
+				System.exit(1);
+			}
+		} else if (args.length > 0) {
+			ImportOptions options = new ImportOptions();
+			ArrayList<File> files = new ArrayList<File>();
+			for (String arg: parseOptions(options, args, 0)) {
 				File file = new File(arg);
 				if (file.exists() && file.canRead()) {
-					try {
-						Main.instance.importLicenses(file);
-					} catch (Exception ex) {
-						ex.printStackTrace();
+					files.add(file);
+				}
+			}
+			int problems = 0;
+			for (File file: files) {
+				try {
+					if (options.validate) {
+						problems += Main.instance.validateImportFile(file, options);
+					} else {
+						Main.instance.importLicenses(file, options);
+					}
+				} catch (Exception ex) {
+					ex.printStackTrace();
+					if (options.validate) {
+						// a file that can't be validated fails the run as well
+						problems++;
 					}
 				}
 			}
+			if (options.validate && files.size() > 1) {
+				System.out.println(String.format("Validated %d files, %d problems", files.size(), problems));
+			}
+			if (problems > 0) {
+				System.exit(1);
+			}
 		} else {
 			Main.instance.init();
 		}
 	}
 
-	private void importLicenses(File importFile) throws Exception {
-		String json = FileUtils.readFileToString(importFile, "UTF-8");
-		LinkedTreeMap[] items = new Gson().fromJson(json, LinkedTreeMap[].class);
-		for (LinkedTreeMap map: items) {
-			if (map == null) {
+	// Applies the --options from args[start] on and returns the remaining arguments, exits on a bad option.
+	private static List<String> parseOptions(Options options, String[] args, int start) {
+		ArrayList<String> remaining = new ArrayList<String>();
+		for (int i = start; i < args.length; i++) {
+			String arg = args[i];
+			if (!arg.startsWith("--")) {
+				remaining.add(arg);
 				continue;
 			}
-			createLicenseFromImportMap(map);
+			try {
+				if (!options.parse(arg)) {
+					System.err.println("Unknown option: " + arg);
+					System.exit(1);
+				}
+			} catch (IllegalArgumentException iae) {
+				System.err.println(iae.getMessage());
+				System.exit(1);
+			}
 		}
+		return remaining;
 	}
 
-	private void createLicenseFromImportMap(LinkedTreeMap map) throws Exception {
-		License license = new License();
-		license.activationCode = (String) map.get("couponCode");
-
-		if (map.containsKey("certType")) {
-			license.cert = Integer.parseInt((String) map.get("certType"));
+	private void importLicenses(File importFile, ImportOptions options) throws Exception {
+		ImportPipeline pipeline = new ImportPipeline(options);
+		pipeline.run(importFile);
+		if (pipeline.getResumedFrom() != null) {
+			System.out.println("Resumed " + importFile.getName() + " after record " + pipeline.getResumedFrom().recordNumber
+					+ " (" + pipeline.getResumedFrom().activationCode + ")");
 		}
-
-		if (map.containsKey("licenseType")) {
-			license.licenseType = (String) map.get("licenseType");
-		}
-
-		if (map.containsKey("firstname")) {
-			license.firstName = (String) map.get("firstname");
-		}
-
-		if (map.containsKey("lastname")) {
-			license.lastName = (String) map.get("lastname");
-		}
-
-		if (map.containsKey("organization")) {
-			license.organization = (String) map.get("organization");
-		}
-
-		if (map.containsKey("city")) {
-			license.city = (String) map.get("city");
-		}
-
-		if (map.containsKey("state")) {
-			license.state = (String) map.get("state");
-		}
-
-		if (map.containsKey("country")) {
-			license.country = (String) map.get("country");
-		}
-
-		if (map.containsKey("orderRef")) {
-			license.purchaseId = (String) map.get("orderRef");
-		}
-
-		if (map.containsKey("email")) {
-			license.email = (String) map.get("email");
-		}
-
-		if (map.containsKey("redeemed")) {
-			try {
-				license.issued = new SimpleDateFormat("yyyy-MM-dd HH:mm:ss").parse((String) map.get("redeemed"));
-			} catch (ParseException pex) {
-				pex.printStackTrace();
-			}
+		System.out.println(String.format("Imported %d licenses (%d signed) from %s in %.1fs, %.0f licenses/sec",
+				pipeline.getSaved(), pipeline.getSigned(), importFile.getName(),
+				pipeline.getElapsedMillis() / 1000.0, pipeline.getThroughput()));
+		if (options.incremental) {
+			System.out.println(String.format("%d added, %d changed, %d unchanged",
+					pipeline.getAdded(), pipeline.getChanged(), pipeline.getUnchanged()));
 		}
+	}
 
-		license.save();
+	// Reports the problems of one file and returns how many there are.
+	private int validateImportFile(File importFile, ImportOptions options) throws Exception {
+		long start = System.currentTimeMillis();
+		ImportValidator validator = new ImportValidator(options);
+		List<ImportValidator.Problem> problems = validator.run(importFile);
+		ImportValidator.report(problems, System.out);
+		System.out.println(String.format("Validated %d records from %s in %.1fs, %d problems",
+				validator.getRecords(), importFile.getName(), (System.currentTimeMillis() - start) / 1000.0, problems.size()));
+		return problems.size();
 	}
 
 	private void init() {
@@ -152,21 +316,13 @@ public final class Main {
 			}
 		}
 
-		String codes = "";
-
-		for (int i = 0; i < count; i++) {
-			codes += license.generateActivationCode() + "\n";
-		}
-
-		return codes;
+		return StringUtils.join(this.service.createActivationCode(license.licenseType, count), "\n") + "\n";
 	}
 
 	private String createSiteLicenseCode() throws Exception {
 		System.out.print("Enter 5 activation codes (comma separated): ");
 		Scanner scan = new Scanner(System.in);
-		String codes = scan.nextLine().trim();
-		License license = new License();
-		return license.generateSiteActivationCode(codes);
+		return this.service.createSiteLicenseCode(scan.nextLine().trim());
 	}
 
 	private String redeemActivationCode() throws Exception {
@@ -174,17 +330,8 @@ public final class Main {
 		License license = new License();
 		HashMap<String, String> licenseMap = new HashMap<String, String>();
 		this.inputLicenseInfo(license, licenseMap);
-		license.fromMap(licenseMap);
 		System.out.print("Enter an activation code: ");
-		license.load(scan.nextLine().trim() + "");
-		if (license.key == null) {
-			LicenseGenerator generator = new LicenseGenerator(license);
-			String licenseCode = generator.generateLicense();
-			license.save();
-			return licenseCode;
-		} else {
-			return license.key;
-		}
+		return this.service.redeemActivationCode(scan.nextLine().trim() + "", licenseMap);
 	}
 
 
@@ -192,7 +339,7 @@ public final class Main {
 		System.out.print("Enter activation code: ");
 		Scanner scan = new Scanner(System.in);
 		try {
-			if (this.isActivationCodeUpgradeable(scan.nextLine().trim().toUpperCase())) {
+			if (this.service.isActivationCodeUpgradeable(scan.nextLine().trim().toUpperCase())) {
 				return "Activation code is upgradable.";
 			} else {
 				return "Cannot upgrade activation code.";
@@ -202,19 +349,10 @@ public final class Main {
 		}
 	}
 
-	private boolean isActivationCodeUpgradeable(String activationCode) throws Exception {
-		License license = new License();
-		license.load(activationCode);
-		return license.replacedBy == null;
-	}
-
 	private String upgradeActivationCode() throws Exception {
 		Scanner scan = new Scanner(System.in);
-		License license = new License();
 		System.out.print("Enter an activation code to upgrade: ");
-		license.load(scan.nextLine().trim() + "");
-		License upgrade = new License();
-		return upgrade.upgradeActivationCode(license);
+		return this.service.upgradeActivationCode(scan.nextLine().trim() + "");
 	}
 
 	@SuppressWarnings("all")
@@ -239,9 +377,7 @@ public final class Main {
 		HashMap<String, String> licenseMap = new HashMap<String, String>();
 		License license = new License();
 		this.inputLicenseInfo(license, licenseMap);
-		license.fromMap(licenseMap);
-		LicenseGenerator generator = new LicenseGenerator(license);
-		return generator.generateLicense();
+		return this.service.createLicense(licenseMap);
 	}
 
 	private static String getPrompt() {
@@ -0,0 +1,17 @@
+package com.formreturn.license;
+
+public class MigrateOptions extends Options {
+
+	// files moved concurrently, moves are mostly waiting on the file system
+	public int workers = PROCESSORS * 2;
+
+	protected boolean apply(String name, String value) {
+		if (name.equals("--workers")) {
+			this.workers = parsePositive(name, value);
+		} else {
+			return false;
+		}
+		return true;
+	}
+
+}
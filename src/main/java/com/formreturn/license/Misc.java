@@ -32,7 +32,16 @@ public class Misc {
 		return home + File.separator + directory;
 	}
 
-	public static String generateActivationCode() {
+	public static String generateActivationCode() throws Exception {
+		// COLLISION CHECK, mostly answered by the activation code index
+		String code;
+		do {
+			code = randomActivationCode();
+		} while (LicenseStores.getDefault().exists(code));
+		return code;
+	}
+
+	private static String randomActivationCode() {
 		String randomString = RandomStringUtils.randomAlphanumeric(30)
 				.toUpperCase();
 		StringBuffer sb = new StringBuffer();
@@ -45,11 +54,6 @@ public class Misc {
 		sb.append(randomString.substring(17, 22));
 		sb.append('-');
 		sb.append(randomString.substring(23, 29));
-
-		// COLLISION CHECK
-		// TODO: must check to see if that the activation code doesn't already exist first
-		// if it does, create another code.
-
 		return sb.toString();
 	}
 
@@ -0,0 +1,46 @@
+package com.formreturn.license;
+
+// Base for the --name=value command line options of the non-interactive modes.
+public abstract class Options {
+
+	protected static final int PROCESSORS = Runtime.getRuntime().availableProcessors();
+
+	// Applies a command line option, returns false if the option isn't known to this mode.
+	public boolean parse(String arg) {
+		String name = arg;
+		String value = null;
+		int index = arg.indexOf('=');
+		if (index > 0) {
+			name = arg.substring(0, index);
+			value = arg.substring(index + 1);
+		}
+		return this.apply(name, value);
+	}
+
+	// value is null when the option was given without '='
+	protected abstract boolean apply(String name, String value);
+
+	protected static int parsePositive(String name, String value) {
+		int count = parseCount(name, value);
+		if (count <= 0) {
+			throw new IllegalArgumentException(name + " must be greater than zero");
+		}
+		return count;
+	}
+
+	protected static int parseCount(String name, String value) {
+		if (value == null) {
+			throw new IllegalArgumentException(name + " requires a value");
+		}
+		try {
+			int count = Integer.parseInt(value.trim());
+			if (count < 0) {
+				throw new IllegalArgumentException(name + " must not be negative");
+			}
+			return count;
+		} catch (NumberFormatException nfe) {
+			throw new IllegalArgumentException(name + " is not a number: " + value);
+		}
+	}
+
+}
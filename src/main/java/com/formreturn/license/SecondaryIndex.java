@@ -0,0 +1,149 @@
+package com.formreturn.license;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.Writer;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+// Maps the values of one license field to the activation codes that have it. Persisted as a journal of
+// "<activationCode>\t<value>" lines, an empty value meaning the code no longer has one, where the last line
+// of a code wins. The in-memory maps only ever follow the journal: updates are appended and then read back
+// together with whatever other processes appended. Values are normalised (see normalise) so lookups ignore
+// surrounding blanks and, for most fields, case.
+public class SecondaryIndex implements LicenseIndex {
+
+	private final String field;
+
+	private final Journal journal;
+
+	private final boolean ignoreCase;
+
+	private final HashMap<String, String> values = new HashMap<String, String>();
+
+	private final HashMap<String, Set<String>> codes = new HashMap<String, Set<String>>();
+
+	private final Journal.Handler handler = new Journal.Handler() {
+		public void apply(String[] fields) {
+			if (fields.length == 2 && fields[0].length() > 0) {
+				SecondaryIndex.this.apply(fields[0], fields[1]);
+			}
+		}
+
+		public void reset() {
+			SecondaryIndex.this.values.clear();
+			SecondaryIndex.this.codes.clear();
+		}
+
+		public void write(Writer out) throws IOException {
+			for (Map.Entry<String, String> entry: SecondaryIndex.this.values.entrySet()) {
+				out.write(entry.getKey() + "\t" + entry.getValue() + "\n");
+			}
+		}
+	};
+
+	public SecondaryIndex(String field, File file, boolean ignoreCase) {
+		this(field, new Journal(file), ignoreCase);
+	}
+
+	private SecondaryIndex(String field, Journal journal, boolean ignoreCase) {
+		this.field = field;
+		this.journal = journal;
+		this.ignoreCase = ignoreCase;
+	}
+
+	public String getField() {
+		return this.field;
+	}
+
+	public synchronized boolean open() throws IOException {
+		this.handler.reset();
+		boolean exists = this.journal.open();
+		this.journal.read(this.handler);
+		if (this.journal.getLines() > 2 * this.values.size() + 1000) {
+			this.journal.compact(this.handler);
+		}
+		return exists;
+	}
+
+	// Codes currently indexed under the value.
+	public synchronized List<String> find(String value) throws IOException {
+		this.journal.read(this.handler);
+		Set<String> found = this.codes.get(this.normalise(value));
+		if (found == null) {
+			return Collections.emptyList();
+		}
+		return new ArrayList<String>(found);
+	}
+
+	// Journals the codes whose value changes.
+	public synchronized void update(Collection<License> licenses) throws IOException {
+		this.journal.read(this.handler);
+		StringBuilder lines = new StringBuilder();
+		Map<String, String> pending = new HashMap<String, String>();
+		for (License license: licenses) {
+			String value = this.normalise(license.toMap().get(this.field));
+			String current = pending.containsKey(license.activationCode)
+					? pending.get(license.activationCode) : this.values.get(license.activationCode);
+			if (value == null ? current != null : !value.equals(current)) {
+				pending.put(license.activationCode, value);
+				lines.append(license.activationCode).append('\t').append(value == null ? "" : value).append('\n');
+			}
+		}
+		if (lines.length() > 0) {
+			this.journal.append(lines.toString());
+			this.journal.read(this.handler);
+		}
+	}
+
+	public synchronized LicenseIndex createRebuild() throws IOException {
+		return new SecondaryIndex(this.field, this.journal.createRebuild(), this.ignoreCase);
+	}
+
+	public synchronized void replaceWith(LicenseIndex rebuilt) throws IOException {
+		this.journal.replaceWith(((SecondaryIndex) rebuilt).journal);
+		this.open();
+	}
+
+	public synchronized void close() throws IOException {
+		this.journal.close();
+	}
+
+	// trimmed, inner tabs and line breaks blanked, lower case unless the field is case sensitive; null if empty
+	public String normalise(String value) {
+		if (value == null) {
+			return null;
+		}
+		value = Journal.clean(value).trim();
+		if (value.length() == 0) {
+			return null;
+		}
+		return this.ignoreCase ? value.toLowerCase() : value;
+	}
+
+	private void apply(String activationCode, String value) {
+		String previous = value.length() == 0 ? this.values.remove(activationCode) : this.values.put(activationCode, value);
+		if (previous != null) {
+			Set<String> previousCodes = this.codes.get(previous);
+			previousCodes.remove(activationCode);
+			if (previousCodes.isEmpty()) {
+				this.codes.remove(previous);
+			}
+		}
+		if (value.length() > 0) {
+			Set<String> valueCodes = this.codes.get(value);
+			if (valueCodes == null) {
+				valueCodes = new HashSet<String>(2);
+				this.codes.put(value, valueCodes);
+			}
+			valueCodes.add(activationCode);
+		}
+	}
+
+}
@@ -0,0 +1,187 @@
+package com.formreturn.license;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+// Keeps secondary indexes on email, purchaseId and organization, the upgrade chains (see UpgradeChainIndex)
+// and the site license members (see SiteLicenseIndex) for the licenses saved through it, journaled in the
+// index directory. The journals are written before the store, so a crash in between can only leave an entry
+// for a value the stored license doesn't have; find loads the licenses it returns and drops those. When the
+// store write fails instead, the values of the licenses as they are still stored are journaled again, so
+// find keeps returning them under their old values.
+// Missing journals are built from a full pass over the store when the store is opened.
+public class SecondaryIndexStore extends ForwardingLicenseStore {
+
+	public static final String[] FIELDS = new String[] {"email", "purchaseId", "organization"};
+
+	private final Map<String, SecondaryIndex> fields = new LinkedHashMap<String, SecondaryIndex>();
+
+	private final UpgradeChainIndex chains;
+
+	private final SiteLicenseIndex sites;
+
+	// all of the above
+	private final List<LicenseIndex> indexes = new ArrayList<LicenseIndex>();
+
+	public SecondaryIndexStore(LicenseStore store, File directory) throws Exception {
+		super(store);
+		for (String field: FIELDS) {
+			// order numbers are matched exactly, names and addresses regardless of case
+			SecondaryIndex index = new SecondaryIndex(field, new File(directory, field + ".idx"), !field.equals("purchaseId"));
+			this.fields.put(field, index);
+			this.indexes.add(index);
+		}
+		this.chains = new UpgradeChainIndex(new File(directory, "upgrades.idx"));
+		this.indexes.add(this.chains);
+		this.sites = new SiteLicenseIndex(new File(directory, "sites.idx"));
+		this.indexes.add(this.sites);
+		boolean complete = true;
+		for (LicenseIndex index: this.indexes) {
+			complete &= index.open();
+		}
+		if (!complete) {
+			this.rebuildIndexes();
+		}
+	}
+
+	public void put(License license) throws Exception {
+		this.putAll(Collections.singletonList(license));
+	}
+
+	public void putAll(Collection<License> licenses) throws Exception {
+		for (LicenseIndex index: this.indexes) {
+			index.update(licenses);
+		}
+		try {
+			this.store.putAll(licenses);
+		} catch (Exception ex) {
+			this.restore(licenses);
+			throw ex;
+		}
+	}
+
+	public void close() throws Exception {
+		try {
+			this.store.close();
+		} finally {
+			for (LicenseIndex index: this.indexes) {
+				index.close();
+			}
+		}
+	}
+
+	// Licenses whose field currently has the value, in no particular order.
+	public List<License> find(String field, String value) throws Exception {
+		SecondaryIndex index = this.fields.get(field);
+		if (index == null) {
+			throw new Exception("No index on " + field);
+		}
+		String normalised = index.normalise(value);
+		List<License> licenses = new ArrayList<License>();
+		for (String activationCode: index.find(value)) {
+			License license = this.store.get(activationCode);
+			if (license != null && normalised.equals(index.normalise(license.toMap().get(field)))) {
+				licenses.add(license);
+			}
+		}
+		return licenses;
+	}
+
+	public UpgradeChainIndex getChains() {
+		return this.chains;
+	}
+
+	public SiteLicenseIndex getSites() {
+		return this.sites;
+	}
+
+	// The site license claiming the member code, provided the stored site license still lists it, null if none.
+	public String getSite(String activationCode) throws Exception {
+		String site = this.sites.getSite(activationCode);
+		if (site == null) {
+			return null;
+		}
+		License license = this.store.get(site);
+		return license != null && SiteLicenseIndex.split(license.siteLicense).contains(activationCode) ? site : null;
+	}
+
+	// The upgrade history of the activation code as far as the store confirms it. A link is journaled before
+	// the upgrade is saved, so one whose upgrade failed or never finished can still be in the chain; the
+	// history stops at the first link the stored licenses don't back.
+	public List<String> getHistory(String activationCode) throws Exception {
+		List<String> codes = this.chains.getHistory(activationCode);
+		int index = Math.max(0, codes.indexOf(activationCode));
+		int first = index;
+		while (first > 0 && this.isUpgrade(codes.get(first - 1), codes.get(first))) {
+			first--;
+		}
+		int last = index;
+		while (last < codes.size() - 1 && this.isUpgrade(codes.get(last), codes.get(last + 1))) {
+			last++;
+		}
+		return new ArrayList<String>(codes.subList(first, last + 1));
+	}
+
+	// Reads every license of the store once and rewrites all journals from them.
+	public void rebuildIndexes() throws Exception {
+		final Map<LicenseIndex, LicenseIndex> rebuilds = new LinkedHashMap<LicenseIndex, LicenseIndex>();
+		for (LicenseIndex index: this.indexes) {
+			rebuilds.put(index, index.createRebuild());
+		}
+		final List<License> batch = new ArrayList<License>(1000);
+		this.store.scan(new Visitor() {
+			public boolean visit(String activationCode) throws Exception {
+				License license = store.get(activationCode);
+				if (license != null) {
+					batch.add(license);
+				}
+				if (batch.size() == 1000) {
+					update(rebuilds.values(), batch);
+				}
+				return true;
+			}
+		});
+		update(rebuilds.values(), batch);
+		for (Map.Entry<LicenseIndex, LicenseIndex> rebuild: rebuilds.entrySet()) {
+			rebuild.getKey().replaceWith(rebuild.getValue());
+		}
+	}
+
+	// Journals the stored versions of licenses whose save failed, undoing the entries the save made. Codes
+	// that were never stored are journaled as a license without values, which releases their site members.
+	private void restore(Collection<License> licenses) {
+		try {
+			List<License> stored = new ArrayList<License>(licenses.size());
+			for (License license: licenses) {
+				License current = this.store.get(license.activationCode);
+				if (current == null) {
+					current = new License();
+					current.activationCode = license.activationCode;
+				}
+				stored.add(current);
+			}
+			update(this.indexes, stored);
+		} catch (Exception ex) {
+			System.err.println("Unable to restore the indexes after a failed save, run --rebuild-index: " + ex.getMessage());
+		}
+	}
+
+	// True if from is stored as replaced by to and to is stored.
+	private boolean isUpgrade(String from, String to) throws Exception {
+		License license = this.store.get(from);
+		return license != null && to.equals(license.replacedBy) && this.store.exists(to);
+	}
+
+	private static void update(Collection<LicenseIndex> indexes, List<License> batch) throws Exception {
+		for (LicenseIndex index: indexes) {
+			index.update(batch);
+		}
+		batch.clear();
+	}
+
+}
@@ -0,0 +1,31 @@
+package com.formreturn.license;
+
+public class ServiceOptions extends Options {
+
+	// requests processed concurrently
+	public int workers = PROCESSORS;
+
+	// requests read ahead of the response being written
+	public int queueSize = 1024;
+
+	// address and port the service daemon listens on
+	public String bind = "127.0.0.1";
+
+	public int port = 8080;
+
+	protected boolean apply(String name, String value) {
+		if (name.equals("--workers")) {
+			this.workers = parsePositive(name, value);
+		} else if (name.equals("--queue-size")) {
+			this.queueSize = parsePositive(name, value);
+		} else if (name.equals("--bind") && value != null) {
+			this.bind = value;
+		} else if (name.equals("--port")) {
+			this.port = parseCount(name, value);
+		} else {
+			return false;
+		}
+		return true;
+	}
+
+}
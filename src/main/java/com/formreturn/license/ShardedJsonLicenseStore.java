@@ -0,0 +1,198 @@
+package com.formreturn.license;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.DirectoryStream;
+import java.nio.file.FileAlreadyExistsException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+// JSON file store spread over two levels of hash-prefix directories, <directory>/3f/a2/<code>.json,
+// so no directory holds more than a few hundred entries. Records still in the flat layout are found
+// as well, which lets migrate() move an existing store into shards while it is in use.
+public class ShardedJsonLicenseStore extends JsonFileLicenseStore {
+
+	private static final char[] HEX = "0123456789abcdef".toCharArray();
+
+	public ShardedJsonLicenseStore(File directory) {
+		super(directory);
+	}
+
+	public License get(String activationCode) throws Exception {
+		License license = super.get(activationCode);
+		if (license == null) {
+			// not migrated yet
+			license = this.read(this.getFlatFile(activationCode));
+			if (license == null) {
+				// or migrated between the two reads, the shard is linked before the flat file goes
+				license = super.get(activationCode);
+			}
+		}
+		return license;
+	}
+
+	public boolean exists(String activationCode) throws Exception {
+		// the shard again last, for a record migrated between the first two checks
+		return super.exists(activationCode) || this.getFlatFile(activationCode).exists() || super.exists(activationCode);
+	}
+
+	public void scan(Visitor visitor) throws Exception {
+		DirectoryStream<Path> shards = Files.newDirectoryStream(this.directory.toPath());
+		try {
+			for (Path shard: shards) {
+				if (!isShard(shard)) {
+					continue;
+				}
+				DirectoryStream<Path> subShards = Files.newDirectoryStream(shard);
+				try {
+					for (Path subShard: subShards) {
+						if (isShard(subShard) && !this.visitDirectory(subShard, visitor, false)) {
+							return;
+						}
+					}
+				} finally {
+					subShards.close();
+				}
+			}
+		} finally {
+			shards.close();
+		}
+		this.visitDirectory(this.directory.toPath(), visitor, true);
+	}
+
+	// Moves every flat <code>.json into its shard using the given number of workers, returns the number moved.
+	public long migrate(int workers) throws Exception {
+		final BlockingQueue<Path> paths = new ArrayBlockingQueue<Path>(1024);
+		final Path end = this.directory.toPath();
+		final AtomicLong moved = new AtomicLong();
+		final Exception[] failure = new Exception[1];
+		ExecutorService executor = Executors.newFixedThreadPool(workers);
+		for (int i = 0; i < workers; i++) {
+			executor.execute(new Runnable() {
+				public void run() {
+					try {
+						Path path;
+						while ((path = paths.take()) != end) {
+							try {
+								if (moveToShard(path)) {
+									moved.incrementAndGet();
+								}
+							} catch (IOException ex) {
+								failure[0] = ex;
+							}
+						}
+						paths.put(end);
+					} catch (InterruptedException iex) {
+						// migration aborted
+					}
+				}
+			});
+		}
+		executor.shutdown();
+		DirectoryStream<Path> stream = Files.newDirectoryStream(this.directory.toPath(), "*.json");
+		try {
+			for (Path path: stream) {
+				paths.put(path);
+			}
+		} finally {
+			stream.close();
+			paths.put(end);
+		}
+		executor.awaitTermination(Long.MAX_VALUE, TimeUnit.SECONDS);
+		if (failure[0] != null) {
+			throw failure[0];
+		}
+		return moved.get();
+	}
+
+	protected File getFile(String activationCode) {
+		byte[] digest;
+		try {
+			digest = MessageDigest.getInstance("MD5").digest(activationCode.getBytes("UTF-8"));
+		} catch (NoSuchAlgorithmException e) {
+			throw new RuntimeException(e);
+		} catch (IOException e) {
+			throw new RuntimeException(e);
+		}
+		String shard = new String(new char[] {HEX[(digest[0] >> 4) & 0xF], HEX[digest[0] & 0xF]});
+		String subShard = new String(new char[] {HEX[(digest[1] >> 4) & 0xF], HEX[digest[1] & 0xF]});
+		return new File(this.directory, shard + File.separator + subShard + File.separator + activationCode + ".json");
+	}
+
+	protected File locate(String activationCode) {
+		File file = super.locate(activationCode);
+		if (file == null) {
+			// not migrated yet
+			File flat = this.getFlatFile(activationCode);
+			file = flat.exists() ? flat : null;
+		}
+		return file;
+	}
+
+	protected File prepare(File file, License license) throws IOException {
+		file.getParentFile().mkdirs();
+		return super.prepare(file, license);
+	}
+
+	protected void install(File temp, File file, License license) throws IOException {
+		super.install(temp, file, license);
+		// the sharded copy is now the newest, drop a flat one that hasn't been migrated
+		this.getFlatFile(license.activationCode).delete();
+	}
+
+	private File getFlatFile(String activationCode) {
+		return super.getFile(activationCode);
+	}
+
+	// A flat file is dropped rather than moved if a newer sharded copy was written in the meantime. The move
+	// is a hard link and a delete, not a rename: linking fails atomically if the sharded copy exists, whereas
+	// a move checks for it first and a save landing in between would be replaced by the stale flat file.
+	private boolean moveToShard(Path path) throws IOException {
+		String name = path.getFileName().toString();
+		File target = this.getFile(name.substring(0, name.length() - ".json".length()));
+		target.getParentFile().mkdirs();
+		try {
+			Files.createLink(target.toPath(), path);
+			Files.deleteIfExists(path);
+			return true;
+		} catch (FileAlreadyExistsException faee) {
+			Files.deleteIfExists(path);
+			return false;
+		}
+	}
+
+	private boolean visitDirectory(Path directory, Visitor visitor, boolean flat) throws Exception {
+		DirectoryStream<Path> stream = Files.newDirectoryStream(directory, "*.json");
+		try {
+			for (Path path: stream) {
+				String name = path.getFileName().toString();
+				String activationCode = name.substring(0, name.length() - ".json".length());
+				if (flat && this.getFile(activationCode).exists()) {
+					// migrated while we were scanning, already visited in its shard
+					continue;
+				}
+				if (!visitor.visit(activationCode)) {
+					return false;
+				}
+			}
+		} finally {
+			stream.close();
+		}
+		return true;
+	}
+
+	private static boolean isShard(Path path) {
+		String name = path.getFileName().toString();
+		return name.length() == 2 && Character.digit(name.charAt(0), 16) >= 0
+				&& Character.digit(name.charAt(1), 16) >= 0 && Files.isDirectory(path);
+	}
+
+}
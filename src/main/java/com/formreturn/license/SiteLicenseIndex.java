@@ -0,0 +1,154 @@
+package com.formreturn.license;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.Writer;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+// Maps the member codes of site licenses to the site license code that claims them, the reverse of the
+// comma separated siteLicense field. Persisted as a journal of "<member>\t<site>" lines, an empty site
+// meaning the member was released, where the last line of a member wins. A claim is journaled before the
+// site license is saved, see SecondaryIndexStore.getSite for the lookup checked against the store.
+public class SiteLicenseIndex implements LicenseIndex {
+
+	private final Journal journal;
+
+	private final HashMap<String, String> sites = new HashMap<String, String>();
+
+	private final HashMap<String, Set<String>> members = new HashMap<String, Set<String>>();
+
+	private final Journal.Handler handler = new Journal.Handler() {
+		public void apply(String[] fields) {
+			if (fields.length == 2 && fields[0].length() > 0) {
+				SiteLicenseIndex.this.apply(fields[0], fields[1]);
+			}
+		}
+
+		public void reset() {
+			SiteLicenseIndex.this.sites.clear();
+			SiteLicenseIndex.this.members.clear();
+		}
+
+		public void write(Writer out) throws IOException {
+			for (Map.Entry<String, String> entry: SiteLicenseIndex.this.sites.entrySet()) {
+				out.write(entry.getKey() + "\t" + entry.getValue() + "\n");
+			}
+		}
+	};
+
+	public SiteLicenseIndex(File file) {
+		this(new Journal(file));
+	}
+
+	private SiteLicenseIndex(Journal journal) {
+		this.journal = journal;
+	}
+
+	public synchronized boolean open() throws IOException {
+		this.handler.reset();
+		boolean exists = this.journal.open();
+		this.journal.read(this.handler);
+		if (this.journal.getLines() > 2 * this.sites.size() + 1000) {
+			this.journal.compact(this.handler);
+		}
+		return exists;
+	}
+
+	// The site license code claiming the member code, null if it isn't part of a site license.
+	public synchronized String getSite(String activationCode) throws IOException {
+		this.journal.read(this.handler);
+		return this.sites.get(activationCode);
+	}
+
+	// The member codes of the site license, as last saved.
+	public synchronized List<String> getMembers(String siteActivationCode) throws IOException {
+		this.journal.read(this.handler);
+		Set<String> found = this.members.get(siteActivationCode);
+		if (found == null) {
+			return Collections.emptyList();
+		}
+		return new ArrayList<String>(found);
+	}
+
+	// Journals the members the site licenses gained or lost.
+	public synchronized void update(Collection<License> licenses) throws IOException {
+		this.journal.read(this.handler);
+		StringBuilder lines = new StringBuilder();
+		for (License license: licenses) {
+			String site = license.activationCode;
+			Set<String> current = this.members.get(site);
+			Set<String> listed = new LinkedHashSet<String>(split(license.siteLicense));
+			for (String member: listed) {
+				if (!site.equals(this.sites.get(member))) {
+					lines.append(Journal.clean(member)).append('\t').append(site).append('\n');
+				}
+			}
+			if (current != null) {
+				for (String member: current) {
+					if (!listed.contains(member)) {
+						lines.append(member).append('\t').append('\n');
+					}
+				}
+			}
+		}
+		if (lines.length() > 0) {
+			this.journal.append(lines.toString());
+			this.journal.read(this.handler);
+		}
+	}
+
+	public synchronized LicenseIndex createRebuild() throws IOException {
+		return new SiteLicenseIndex(this.journal.createRebuild());
+	}
+
+	public synchronized void replaceWith(LicenseIndex rebuilt) throws IOException {
+		this.journal.replaceWith(((SiteLicenseIndex) rebuilt).journal);
+		this.open();
+	}
+
+	public synchronized void close() throws IOException {
+		this.journal.close();
+	}
+
+	// Member codes of a siteLicense value, trimmed and upper case, without empty entries.
+	public static List<String> split(String siteLicense) {
+		List<String> codes = new ArrayList<String>();
+		if (siteLicense == null) {
+			return codes;
+		}
+		for (String code: siteLicense.split(",")) {
+			code = code.trim().toUpperCase();
+			if (code.length() > 0) {
+				codes.add(code);
+			}
+		}
+		return codes;
+	}
+
+	private void apply(String member, String site) {
+		String previous = site.length() == 0 ? this.sites.remove(member) : this.sites.put(member, site);
+		if (previous != null) {
+			Set<String> previousMembers = this.members.get(previous);
+			previousMembers.remove(member);
+			if (previousMembers.isEmpty()) {
+				this.members.remove(previous);
+			}
+		}
+		if (site.length() > 0) {
+			Set<String> siteMembers = this.members.get(site);
+			if (siteMembers == null) {
+				siteMembers = new LinkedHashSet<String>();
+				this.members.put(site, siteMembers);
+			}
+			siteMembers.add(member);
+		}
+	}
+
+}
@@ -0,0 +1,8 @@
+package com.formreturn.license;
+
+// Backends that can freeze a point-in-time view of their records while saves go on, used by backups.
+public interface SnapshotLicenseStore extends LicenseStore {
+
+	LicenseSnapshot openSnapshot() throws Exception;
+
+}
@@ -0,0 +1,181 @@
+package com.formreturn.license;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.Writer;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Set;
+
+// The chains of upgrades formed by upgradedFrom and replacedBy. Every code of a chain maps to the same
+// shared Chain holding the codes from the original to the latest, so the original, the latest and the whole
+// history of any code are one map lookup however long the chain is. Persisted as a journal of
+// "<from>\t<to>" upgrade links, read back the same way as the secondary indexes.
+// Links are journaled before the upgrade is saved and never taken back, so a chain may end in codes whose
+// upgrade failed; SecondaryIndexStore.getHistory checks the links against the store.
+public class UpgradeChainIndex implements LicenseIndex {
+
+	private final Journal journal;
+
+	private final HashMap<String, Chain> chains = new HashMap<String, Chain>();
+
+	private final Journal.Handler handler = new Journal.Handler() {
+		public void apply(String[] fields) {
+			if (fields.length == 2 && fields[0].length() > 0 && fields[1].length() > 0) {
+				link(fields[0], fields[1]);
+			}
+		}
+
+		public void reset() {
+			UpgradeChainIndex.this.chains.clear();
+		}
+
+		public void write(Writer out) throws IOException {
+			for (Chain chain: UpgradeChainIndex.this.getChains()) {
+				for (int i = 1; i < chain.codes.size(); i++) {
+					out.write(chain.codes.get(i - 1) + "\t" + chain.codes.get(i) + "\n");
+				}
+			}
+		}
+	};
+
+	public UpgradeChainIndex(File file) {
+		this(new Journal(file));
+	}
+
+	private UpgradeChainIndex(Journal journal) {
+		this.journal = journal;
+	}
+
+	public synchronized boolean open() throws IOException {
+		this.handler.reset();
+		boolean exists = this.journal.open();
+		this.journal.read(this.handler);
+		// a chain of n codes is n - 1 links
+		long links = this.chains.size() - this.getChains().size();
+		if (this.journal.getLines() > 2 * links + 1000) {
+			this.journal.compact(this.handler);
+		}
+		return exists;
+	}
+
+	// The code the chain of the activation code started with, the code itself if it was never upgraded.
+	public synchronized String getOriginal(String activationCode) throws IOException {
+		List<String> codes = this.getChain(activationCode);
+		return codes == null ? activationCode : codes.get(0);
+	}
+
+	// The code that currently replaces the activation code, the code itself if it hasn't been upgraded.
+	public synchronized String getLatest(String activationCode) throws IOException {
+		List<String> codes = this.getChain(activationCode);
+		return codes == null ? activationCode : codes.get(codes.size() - 1);
+	}
+
+	// All codes of the chain from the original to the latest.
+	public synchronized List<String> getHistory(String activationCode) throws IOException {
+		List<String> codes = this.getChain(activationCode);
+		return codes == null ? Collections.singletonList(activationCode) : new ArrayList<String>(codes);
+	}
+
+	// Journals the upgrade links of the licenses that aren't known yet.
+	public synchronized void update(Collection<License> licenses) throws IOException {
+		this.journal.read(this.handler);
+		Set<String> links = new LinkedHashSet<String>();
+		for (License license: licenses) {
+			String code = license.activationCode;
+			if (license.upgradedFrom != null && !this.isLinked(license.upgradedFrom, code)) {
+				links.add(Journal.clean(license.upgradedFrom) + "\t" + code + "\n");
+			}
+			if (license.replacedBy != null && !this.isLinked(code, license.replacedBy)) {
+				links.add(code + "\t" + Journal.clean(license.replacedBy) + "\n");
+			}
+		}
+		if (!links.isEmpty()) {
+			StringBuilder lines = new StringBuilder();
+			for (String link: links) {
+				lines.append(link);
+			}
+			this.journal.append(lines.toString());
+			this.journal.read(this.handler);
+		}
+	}
+
+	public synchronized LicenseIndex createRebuild() throws IOException {
+		return new UpgradeChainIndex(this.journal.createRebuild());
+	}
+
+	public synchronized void replaceWith(LicenseIndex rebuilt) throws IOException {
+		this.journal.replaceWith(((UpgradeChainIndex) rebuilt).journal);
+		this.open();
+	}
+
+	public synchronized void close() throws IOException {
+		this.journal.close();
+	}
+
+	private List<String> getChain(String activationCode) throws IOException {
+		this.journal.read(this.handler);
+		Chain chain = this.chains.get(activationCode);
+		return chain == null ? null : chain.codes;
+	}
+
+	// each chain once
+	private Set<Chain> getChains() {
+		Set<Chain> distinct = Collections.newSetFromMap(new IdentityHashMap<Chain, Boolean>());
+		distinct.addAll(this.chains.values());
+		return distinct;
+	}
+
+	private boolean isLinked(String from, String to) {
+		Chain chain = this.chains.get(from);
+		return chain != null && chain == this.chains.get(to) && chain.codes.indexOf(to) == chain.codes.indexOf(from) + 1;
+	}
+
+	// Appends to to the chain of from. A code is upgraded once, so to normally starts a chain of its own
+	// (or none); should from already have a successor, the link is taken as the newer one and the old
+	// successors are split off into a chain of their own.
+	private void link(String from, String to) {
+		Chain chain = this.chains.get(from);
+		if (chain == null) {
+			chain = new Chain();
+			chain.codes.add(from);
+			this.chains.put(from, chain);
+		}
+		int index = chain.codes.indexOf(from);
+		if (index < chain.codes.size() - 1) {
+			Chain rest = new Chain();
+			rest.codes.addAll(chain.codes.subList(index + 1, chain.codes.size()));
+			chain.codes.subList(index + 1, chain.codes.size()).clear();
+			for (String code: rest.codes) {
+				this.chains.put(code, rest);
+			}
+		}
+		Chain next = this.chains.get(to);
+		if (next == chain) {
+			// would close a loop, which an upgrade can't
+			return;
+		}
+		List<String> moved = next == null ? Collections.singletonList(to) : next.codes;
+		if (next != null && next.codes.indexOf(to) > 0) {
+			// to is in the middle of another chain, only it and its successors move
+			moved = new ArrayList<String>(next.codes.subList(next.codes.indexOf(to), next.codes.size()));
+			next.codes.subList(next.codes.indexOf(to), next.codes.size()).clear();
+		}
+		for (String code: moved) {
+			chain.codes.add(code);
+			this.chains.put(code, chain);
+		}
+	}
+
+	private static class Chain {
+
+		private final List<String> codes = new ArrayList<String>(2);
+
+	}
+
+}
@@ -0,0 +1,81 @@
+package com.formreturn.license;
+
+import org.apache.commons.io.FileUtils;
+import org.apache.commons.io.IOUtils;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+// A second process on the test classpath working on the store directory of the test, for what only shows
+// between processes: file locks, and saves the cache of the other process doesn't know about.
+// The processes hand each other the turn through marker files in the store directory.
+final class ChildJvm {
+
+	private static final long TIMEOUT = 60000;
+
+	private final Process process;
+
+	private ChildJvm(Process process) {
+		this.process = process;
+	}
+
+	// A store directory of its own for the test class, set before the default store is first opened.
+	static File createStoreDirectory() throws IOException {
+		File directory = Files.createTempDirectory("licenses").toFile();
+		System.setProperty(LicenseStores.DIRECTORY_PROPERTY, directory.getAbsolutePath());
+		return directory;
+	}
+
+	static void deleteStoreDirectory(File directory) throws Exception {
+		LicenseStores.setDefault(null);
+		FileUtils.deleteDirectory(directory);
+	}
+
+	// Runs the main method of the class with the arguments.
+	static ChildJvm start(Class<?> main, String... args) throws IOException {
+		List<String> command = new ArrayList<String>();
+		command.add(new File(new File(System.getProperty("java.home"), "bin"), "java").getPath());
+		command.add("-cp");
+		command.add(System.getProperty("java.class.path"));
+		command.add("-D" + LicenseStores.DIRECTORY_PROPERTY + "=" + System.getProperty(LicenseStores.DIRECTORY_PROPERTY));
+		command.add(main.getName());
+		command.addAll(Arrays.asList(args));
+		ProcessBuilder builder = new ProcessBuilder(command);
+		builder.redirectError(ProcessBuilder.Redirect.INHERIT);
+		return new ChildJvm(builder.start());
+	}
+
+	// What the process printed, once it exited successfully.
+	String await() throws Exception {
+		String output = IOUtils.toString(this.process.getInputStream(), "UTF-8").trim();
+		if (this.process.waitFor() != 0) {
+			throw new AssertionError("Child JVM failed with exit code " + this.process.exitValue() + ": " + output);
+		}
+		return output;
+	}
+
+	void destroy() {
+		this.process.destroy();
+	}
+
+	static void signal(String name) throws IOException {
+		new File(LicenseStores.getDirectory(), name).createNewFile();
+	}
+
+	// Waits for the other process to signal.
+	static void awaitSignal(String name) throws InterruptedException {
+		File marker = new File(LicenseStores.getDirectory(), name);
+		long deadline = System.currentTimeMillis() + TIMEOUT;
+		while (!marker.exists()) {
+			if (System.currentTimeMillis() > deadline) {
+				throw new AssertionError("No " + name + " signal from the other JVM");
+			}
+			Thread.sleep(10);
+		}
+	}
+
+}
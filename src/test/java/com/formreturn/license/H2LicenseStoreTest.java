@@ -0,0 +1,233 @@
+package com.formreturn.license;
+
+import org.apache.commons.io.FileUtils;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.nio.file.Files;
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.sql.Statement;
+import java.time.LocalDate;
+import java.time.ZoneId;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Date;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+public class H2LicenseStoreTest {
+
+	private File directory;
+
+	private H2LicenseStore store;
+
+	@Before
+	public void open() throws Exception {
+		this.directory = Files.createTempDirectory("h2licenses").toFile();
+		this.store = new H2LicenseStore(this.directory, 2);
+	}
+
+	@After
+	public void close() throws Exception {
+		if (this.store != null) {
+			this.store.close();
+		}
+		FileUtils.deleteDirectory(this.directory);
+	}
+
+	@Test
+	public void roundTrip() throws Exception {
+		License license = license("AAAAA-BBBBB-CCCCC-DDDDD-000001", "first@example.com");
+		license.licenseType = "Server";
+		license.cert = License.SERVER_LICENSE;
+		license.quantity = 5;
+		license.replacedBy = "AAAAA-BBBBB-CCCCC-DDDDD-000002";
+		license.upgradedFrom = "AAAAA-BBBBB-CCCCC-DDDDD-000000";
+		license.siteLicense = "AAAAA-BBBBB-CCCCC-DDDDD-000003,AAAAA-BBBBB-CCCCC-DDDDD-000004";
+		license.lastName = "Tester";
+		license.canonicalName = "Test Tester";
+		license.organization = "Example";
+		license.street = "1 Example Street";
+		license.city = "Brisbane";
+		license.state = "QLD";
+		license.country = "AU";
+		license.purchaseId = "order-1";
+		license.issued = day(2020, 2, 29);
+		license.expire = day(2030, 12, 31);
+		license.key = "signed key";
+		license.version = 7;
+		this.store.put(license);
+
+		License stored = this.store.get(license.activationCode);
+		assertNotNull(stored);
+		assertEquals(license.toMap(), stored.toMap());
+		assertEquals(license.licenseType, stored.licenseType);
+		assertEquals(license.cert, stored.cert);
+		assertEquals(license.quantity, stored.quantity);
+		assertEquals(license.replacedBy, stored.replacedBy);
+		assertEquals(license.upgradedFrom, stored.upgradedFrom);
+		assertEquals(license.siteLicense, stored.siteLicense);
+		assertEquals(license.issued, stored.issued);
+		assertEquals(license.expire, stored.expire);
+		assertEquals(license.key, stored.key);
+		assertEquals(7, stored.version);
+		assertTrue(this.store.exists(license.activationCode));
+
+		// saved again under the same code
+		license.email = "second@example.com";
+		license.expire = null;
+		license.version = 8;
+		this.store.put(license);
+		stored = this.store.get(license.activationCode);
+		assertEquals("second@example.com", stored.email);
+		assertNull(stored.expire);
+		assertEquals(8, stored.version);
+	}
+
+	@Test
+	public void missingValuesGetTheDefaultsOfFromMap() throws Exception {
+		License license = new License();
+		license.activationCode = "AAAAA-BBBBB-CCCCC-DDDDD-000005";
+		license.licenseType = null;
+		this.store.put(license);
+
+		License stored = this.store.get(license.activationCode);
+		assertEquals("User", stored.licenseType);
+		assertEquals(Misc.getMD5Sum(license.activationCode), stored.purchaseId);
+		assertEquals(Date.from(LocalDate.now().atStartOfDay(ZoneId.systemDefault()).toInstant()), stored.issued);
+		assertNull(stored.expire);
+		assertEquals(0, stored.version);
+		assertNull(this.store.get("AAAAA-BBBBB-CCCCC-DDDDD-999999"));
+		assertFalse(this.store.exists("AAAAA-BBBBB-CCCCC-DDDDD-999999"));
+	}
+
+	@Test
+	public void failedBatchIsRolledBack() throws Exception {
+		License kept = license("AAAAA-BBBBB-CCCCC-DDDDD-000010", "kept@example.com");
+		this.store.put(kept);
+
+		License changed = license(kept.activationCode, "changed@example.com");
+		License added = license("AAAAA-BBBBB-CCCCC-DDDDD-000011", "added@example.com");
+		// longer than the activation code column
+		License invalid = license(new String(new char[65]).replace('\0', 'X'), "invalid@example.com");
+		try {
+			this.store.putAll(Arrays.asList(changed, added, invalid));
+			fail("Saved a code longer than the column");
+		} catch (Exception expected) {
+		}
+		assertEquals("kept@example.com", this.store.get(kept.activationCode).email);
+		assertNull(this.store.get(added.activationCode));
+
+		// the connection is usable again after the rollback
+		this.store.putAll(Arrays.asList(changed, added));
+		assertEquals("changed@example.com", this.store.get(kept.activationCode).email);
+		assertEquals("added@example.com", this.store.get(added.activationCode).email);
+	}
+
+	@Test
+	public void scanVisitsEveryPage() throws Exception {
+		List<License> licenses = new ArrayList<License>();
+		for (int i = 0; i < 2500; i++) {
+			licenses.add(license(String.format("AAAAA-BBBBB-CCCCC-DDDDD-%06d", i), null));
+		}
+		this.store.putAll(licenses);
+		final AtomicInteger visited = new AtomicInteger();
+		this.store.scan(new LicenseStore.Visitor() {
+			public boolean visit(String activationCode) {
+				visited.incrementAndGet();
+				return true;
+			}
+		});
+		assertEquals(2500, visited.get());
+	}
+
+	// Databases created before licenses had a version get the column, at 0 for the licenses they hold.
+	@Test
+	public void addsTheVersionColumn() throws Exception {
+		this.store.close();
+		this.store = null;
+		FileUtils.cleanDirectory(this.directory);
+		Connection connection = DriverManager.getConnection("jdbc:h2:" + new File(this.directory, "licenses").getAbsolutePath(), "sa", "");
+		try {
+			Statement statement = connection.createStatement();
+			statement.execute("CREATE TABLE licenses ("
+					+ "activation_code VARCHAR(64) PRIMARY KEY, license_type VARCHAR, cert INT NOT NULL, quantity INT NOT NULL, "
+					+ "replaced_by VARCHAR(64), upgraded_from VARCHAR(64), site_license VARCHAR, "
+					+ "first_name VARCHAR, last_name VARCHAR, canonical_name VARCHAR, organization VARCHAR, street VARCHAR, "
+					+ "city VARCHAR, state VARCHAR, country VARCHAR, purchase_id VARCHAR, email VARCHAR, "
+					+ "issued DATE, expire DATE, license_key VARCHAR)");
+			statement.execute("INSERT INTO licenses (activation_code, license_type, cert, quantity, email) "
+					+ "VALUES ('AAAAA-BBBBB-CCCCC-DDDDD-000020', 'User', 0, 1, 'old@example.com')");
+			statement.close();
+		} finally {
+			connection.close();
+		}
+
+		this.store = new H2LicenseStore(this.directory, 2);
+		License stored = this.store.get("AAAAA-BBBBB-CCCCC-DDDDD-000020");
+		assertEquals("old@example.com", stored.email);
+		assertEquals(0, stored.version);
+		stored.version = 1;
+		this.store.put(stored);
+		assertEquals(1, this.store.get(stored.activationCode).version);
+	}
+
+	// A snapshot keeps seeing the store as it was when it was opened.
+	@Test
+	public void snapshotIsRepeatable() throws Exception {
+		License before = license("AAAAA-BBBBB-CCCCC-DDDDD-000030", "before@example.com");
+		this.store.put(before);
+		LicenseSnapshot snapshot = this.store.openSnapshot();
+		try {
+			assertTrue(snapshot.getWatermark(), snapshot.getWatermark().startsWith("1 licenses at "));
+
+			License changed = license(before.activationCode, "after@example.com");
+			changed.version = 1;
+			License added = license("AAAAA-BBBBB-CCCCC-DDDDD-000031", "added@example.com");
+			this.store.putAll(Arrays.asList(changed, added));
+
+			assertEquals("before@example.com", snapshot.get(before.activationCode).email);
+			assertEquals(0, snapshot.get(before.activationCode).version);
+			assertNull(snapshot.get(added.activationCode));
+			List<License> all = snapshot.getAll(Arrays.asList(added.activationCode, before.activationCode));
+			assertEquals(1, all.size());
+			assertEquals("before@example.com", all.get(0).email);
+			final List<String> scanned = new ArrayList<String>();
+			snapshot.scan(new LicenseStore.Visitor() {
+				public boolean visit(String activationCode) {
+					scanned.add(activationCode);
+					return true;
+				}
+			});
+			assertEquals(Arrays.asList(before.activationCode), scanned);
+		} finally {
+			snapshot.close();
+		}
+		assertEquals("after@example.com", this.store.get(before.activationCode).email);
+		assertNotNull(this.store.get("AAAAA-BBBBB-CCCCC-DDDDD-000031"));
+	}
+
+	private static License license(String activationCode, String email) {
+		License license = new License();
+		license.activationCode = activationCode;
+		license.firstName = "Test";
+		license.email = email;
+		license.issued = day(2021, 6, 1);
+		return license;
+	}
+
+	private static Date day(int year, int month, int day) {
+		return Date.from(LocalDate.of(year, month, day).atStartOfDay(ZoneId.systemDefault()).toInstant());
+	}
+
+}
@@ -0,0 +1,152 @@
+package com.formreturn.license;
+
+import org.junit.AfterClass;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class LicenseLocksTest {
+
+	private static final String FIRST = "AAAAA-AAAAA-AAAAA-AAAAA-AAAAA1";
+
+	private static final String SECOND = "BBBBB-BBBBB-BBBBB-BBBBB-BBBBB2";
+
+	private static final int ROUNDS = 1000;
+
+	private static File directory;
+
+	@BeforeClass
+	public static void createStore() throws Exception {
+		directory = ChildJvm.createStoreDirectory();
+	}
+
+	@AfterClass
+	public static void deleteStore() throws Exception {
+		ChildJvm.deleteStoreDirectory(directory);
+	}
+
+	// Codes given in opposite orders are still locked in stripe order, by threads as well as processes.
+	@Test(timeout = 120000)
+	public void opposingLockOrdersDontDeadlock() throws Exception {
+		ChildJvm child = ChildJvm.start(LicenseLocksTest.class, "order", SECOND, FIRST);
+		ChildJvm.awaitSignal("ordering");
+		final List<Throwable> failures = Collections.synchronizedList(new ArrayList<Throwable>());
+		Thread forward = lockInRounds(FIRST, SECOND, failures);
+		Thread backward = lockInRounds(SECOND, FIRST, failures);
+		forward.join();
+		backward.join();
+		assertEquals("done", child.await());
+		assertTrue(failures.toString(), failures.isEmpty());
+	}
+
+	// A thread with its interrupt flag set used to close the shared channel in FileChannel.lock, which dropped
+	// the file locks of every other stripe held.
+	@Test(timeout = 120000)
+	public void interruptedLockerKeepsOtherStripesLocked() throws Exception {
+		LicenseLocks.Held held = LicenseLocks.getDefault().lock(FIRST);
+		ChildJvm child = null;
+		try {
+			final List<Throwable> failures = Collections.synchronizedList(new ArrayList<Throwable>());
+			Thread interrupted = new Thread() {
+				public void run() {
+					this.interrupt();
+					try {
+						LicenseLocks.getDefault().lock(SECOND).release();
+					} catch (Throwable ex) {
+						failures.add(ex);
+					}
+				}
+			};
+			interrupted.start();
+			interrupted.join();
+			assertTrue(failures.toString(), failures.isEmpty());
+
+			// the stripe is still locked, in this process and for others
+			LicenseLocks.getDefault().lock(FIRST).release();
+			child = ChildJvm.start(LicenseLocksTest.class, "lock", FIRST);
+			Thread.sleep(1000);
+			assertFalse(new File(directory, "locked").exists());
+		} finally {
+			held.release();
+		}
+		assertEquals("done", child.await());
+	}
+
+	// Threads of two processes waiting for stripes the other process holds: Linux takes that for a deadlock
+	// (EDEADLK) when the waits are in the kernel, though the stripe order rules one out.
+	@Test(timeout = 120000)
+	public void crossProcessWaitsSucceed() throws Exception {
+		LicenseLocks.Held first = LicenseLocks.getDefault().lock(FIRST);
+		ChildJvm child;
+		final List<Throwable> failures = Collections.synchronizedList(new ArrayList<Throwable>());
+		Thread waiter;
+		try {
+			// the child holds the second code and waits for the first
+			child = ChildJvm.start(LicenseLocksTest.class, "hold", FIRST, SECOND);
+			ChildJvm.awaitSignal("holding");
+			waiter = new Thread() {
+				public void run() {
+					try {
+						LicenseLocks.getDefault().lock(SECOND).release();
+					} catch (Throwable ex) {
+						failures.add(ex);
+					}
+				}
+			};
+			waiter.start();
+			Thread.sleep(500);
+		} finally {
+			first.release();
+		}
+		waiter.join();
+		assertEquals("done", child.await());
+		assertTrue(failures.toString(), failures.isEmpty());
+	}
+
+	private static Thread lockInRounds(final String first, final String second, final List<Throwable> failures) {
+		Thread thread = new Thread() {
+			public void run() {
+				try {
+					for (int i = 0; i < ROUNDS; i++) {
+						LicenseLocks.getDefault().lock(first, second).release();
+					}
+				} catch (Throwable ex) {
+					failures.add(ex);
+				}
+			}
+		};
+		thread.start();
+		return thread;
+	}
+
+	// The other process of the tests.
+	public static void main(String[] args) throws Exception {
+		String mode = args[0];
+		if (mode.equals("order")) {
+			ChildJvm.signal("ordering");
+			for (int i = 0; i < ROUNDS; i++) {
+				LicenseLocks.getDefault().lock(args[1], args[2]).release();
+			}
+		} else if (mode.equals("lock")) {
+			LicenseLocks.Held held = LicenseLocks.getDefault().lock(args[1]);
+			ChildJvm.signal("locked");
+			held.release();
+		} else if (mode.equals("hold")) {
+			LicenseLocks.Held second = LicenseLocks.getDefault().lock(args[2]);
+			ChildJvm.signal("holding");
+			LicenseLocks.getDefault().lock(args[1]).release();
+			second.release();
+		}
+		System.out.println("done");
+		System.exit(0);
+	}
+
+}
@@ -0,0 +1,99 @@
+package com.formreturn.license;
+
+import org.junit.AfterClass;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+import java.io.File;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CyclicBarrier;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+
+// Concurrent redeems of one activation code, by threads and by processes, generate a single key.
+public class RedeemRaceTest {
+
+	private static final int THREADS = 8;
+
+	private static File directory;
+
+	@BeforeClass
+	public static void createStore() throws Exception {
+		directory = ChildJvm.createStoreDirectory();
+	}
+
+	@AfterClass
+	public static void deleteStore() throws Exception {
+		ChildJvm.deleteStoreDirectory(directory);
+	}
+
+	@Test(timeout = 120000)
+	public void threadsRedeemOneKey() throws Exception {
+		final String activationCode = new LicenseService().createActivationCode(null, 1).get(0);
+		long created = LicenseStores.getUncached().get(activationCode).version;
+		final CyclicBarrier start = new CyclicBarrier(THREADS);
+		ExecutorService executor = Executors.newFixedThreadPool(THREADS);
+		try {
+			Future<?>[] keys = new Future<?>[THREADS];
+			for (int i = 0; i < THREADS; i++) {
+				final int thread = i;
+				keys[i] = executor.submit(new Callable<String>() {
+					public String call() throws Exception {
+						start.await();
+						return new LicenseService().redeemActivationCode(activationCode, fields("Thread " + thread));
+					}
+				});
+			}
+			String key = (String) keys[0].get();
+			for (Future<?> other: keys) {
+				assertEquals(key, other.get());
+			}
+			assertStoredKey(activationCode, key, created);
+		} finally {
+			executor.shutdown();
+		}
+	}
+
+	@Test(timeout = 120000)
+	public void processesRedeemOneKey() throws Exception {
+		String activationCode = new LicenseService().createActivationCode(null, 1).get(0);
+		long created = LicenseStores.getUncached().get(activationCode).version;
+		ChildJvm child = ChildJvm.start(RedeemRaceTest.class, activationCode);
+		ChildJvm.awaitSignal("ready");
+		ChildJvm.signal("go");
+		String key = new LicenseService().redeemActivationCode(activationCode, fields("Parent"));
+		assertEquals(key, child.await());
+		assertStoredKey(activationCode, key, created);
+	}
+
+	private static void assertStoredKey(String activationCode, String key, long created) throws Exception {
+		License stored = LicenseStores.getUncached().get(activationCode);
+		assertNotNull(stored);
+		assertEquals(key, stored.key);
+		// the key was saved once
+		assertEquals(created + 1, stored.version);
+	}
+
+	private static Map<String, String> fields(String firstName) {
+		Map<String, String> fields = new HashMap<String, String>();
+		fields.put("firstName", firstName);
+		fields.put("lastName", "Tester");
+		fields.put("email", "tester@example.com");
+		return fields;
+	}
+
+	// The other process: redeems the code once the parent gives the go and prints the key.
+	public static void main(String[] args) throws Exception {
+		ChildJvm.signal("ready");
+		ChildJvm.awaitSignal("go");
+		System.out.println(new LicenseService().redeemActivationCode(args[0], fields("Child")));
+		System.exit(0);
+	}
+
+}
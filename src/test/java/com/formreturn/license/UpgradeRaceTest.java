@@ -0,0 +1,137 @@
+package com.formreturn.license;
+
+import org.junit.AfterClass;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CyclicBarrier;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+// Concurrent upgrades of one activation code, by threads and by processes, create a single new code, and
+// bulk saves can't set a record back to a version a loaded license still has.
+public class UpgradeRaceTest {
+
+	private static final int THREADS = 8;
+
+	private static final String FAILED = "failed: ";
+
+	private static File directory;
+
+	@BeforeClass
+	public static void createStore() throws Exception {
+		directory = ChildJvm.createStoreDirectory();
+	}
+
+	@AfterClass
+	public static void deleteStore() throws Exception {
+		ChildJvm.deleteStoreDirectory(directory);
+	}
+
+	@Test(timeout = 120000)
+	public void threadsUpgradeOnce() throws Exception {
+		final String activationCode = new LicenseService().createActivationCode(null, 1).get(0);
+		final CyclicBarrier start = new CyclicBarrier(THREADS);
+		ExecutorService executor = Executors.newFixedThreadPool(THREADS);
+		try {
+			List<Future<String>> upgrades = new ArrayList<Future<String>>();
+			for (int i = 0; i < THREADS; i++) {
+				upgrades.add(executor.submit(new Callable<String>() {
+					public String call() throws Exception {
+						start.await();
+						return upgrade(activationCode);
+					}
+				}));
+			}
+			List<String> results = new ArrayList<String>();
+			for (Future<String> upgrade: upgrades) {
+				results.add(upgrade.get());
+			}
+			assertUpgradedOnce(activationCode, results);
+		} finally {
+			executor.shutdown();
+		}
+	}
+
+	@Test(timeout = 120000)
+	public void processesUpgradeOnce() throws Exception {
+		String activationCode = new LicenseService().createActivationCode(null, 1).get(0);
+		ChildJvm child = ChildJvm.start(UpgradeRaceTest.class, activationCode);
+		ChildJvm.awaitSignal("ready");
+		ChildJvm.signal("go");
+		String upgraded = upgrade(activationCode);
+		List<String> results = new ArrayList<String>();
+		results.add(upgraded);
+		results.add(child.await());
+		assertUpgradedOnce(activationCode, results);
+	}
+
+	@Test
+	public void bulkSavesCountUpFromTheStoredVersion() throws Exception {
+		String activationCode = new LicenseService().createActivationCode(null, 1).get(0);
+		License loaded = new License();
+		loaded.loadLatest(activationCode);
+
+		// an import of the same record, carrying the version it had when it was exported
+		License imported = new License();
+		imported.activationCode = activationCode;
+		imported.email = "imported@example.com";
+		imported.version = loaded.version;
+		License.saveAll(Collections.singletonList(imported));
+		License stored = LicenseStores.getUncached().get(activationCode);
+		assertEquals(loaded.version + 1, stored.version);
+		assertEquals("imported@example.com", stored.email);
+
+		// what was loaded before the import is out of date
+		loaded.email = "loaded@example.com";
+		try {
+			loaded.save();
+			fail("Saved over a bulk save");
+		} catch (Exception ex) {
+			assertTrue(ex.getMessage(), ex.getMessage().contains("changed concurrently"));
+		}
+		assertEquals("imported@example.com", LicenseStores.getUncached().get(activationCode).email);
+	}
+
+	private static void assertUpgradedOnce(String activationCode, List<String> results) throws Exception {
+		String upgradeCode = null;
+		for (String result: results) {
+			if (!result.startsWith(FAILED)) {
+				assertEquals("Upgraded more than once: " + results, null, upgradeCode);
+				upgradeCode = result;
+			}
+		}
+		assertTrue("Not upgraded: " + results, upgradeCode != null);
+		assertEquals(upgradeCode, LicenseStores.getUncached().get(activationCode).replacedBy);
+		assertEquals(activationCode, LicenseStores.getUncached().get(upgradeCode).upgradedFrom);
+		assertEquals(upgradeCode, new LicenseService().getUpgradeChain(activationCode).get("latest"));
+	}
+
+	// The new code, or why the upgrade failed.
+	private static String upgrade(String activationCode) {
+		try {
+			return new LicenseService().upgradeActivationCode(activationCode);
+		} catch (Exception ex) {
+			return FAILED + ex.getMessage();
+		}
+	}
+
+	// The other process: upgrades the code once the parent gives the go and prints the outcome.
+	public static void main(String[] args) throws Exception {
+		ChildJvm.signal("ready");
+		ChildJvm.awaitSignal("go");
+		System.out.println(upgrade(args[0]));
+		System.exit(0);
+	}
+
+}